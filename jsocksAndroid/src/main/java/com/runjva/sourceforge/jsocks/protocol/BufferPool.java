@@ -0,0 +1,47 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of direct buffers used for relaying data between channels.
+ * <p>
+ * Direct buffers are expensive to allocate and are not released until
+ * garbage collected, so they are kept around and reused. At most
+ * maxPooled buffers are retained, buffers released beyond that are dropped.
+ */
+class BufferPool {
+
+	static int maxPooled = 64;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Returns cleared direct buffer of ProxyServer.BUF_SIZE bytes.
+	 */
+	static ByteBuffer acquire() {
+		final ByteBuffer buf = pool.poll();
+		if (buf == null) {
+			return ByteBuffer.allocateDirect(ProxyServer.BUF_SIZE);
+		}
+		pooled.decrementAndGet();
+		return buf;
+	}
+
+	/**
+	 * Gives buffer back to the pool, it must not be used afterwards.
+	 */
+	static void release(final ByteBuffer buf) {
+		if (buf == null) {
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buf.clear();
+		pool.offer(buf);
+	}
+}
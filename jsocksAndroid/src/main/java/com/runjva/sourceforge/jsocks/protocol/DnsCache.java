@@ -0,0 +1,216 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of host name lookups shared by the whole package.
+ * <p>
+ * Successful lookups are kept for ttl milliseconds, failed ones for
+ * negativeTtl. Lookups do not lock the cache, and concurrent lookups of the
+ * same name are coalesced, only the first caller queries the resolver and the
+ * others wait for its result. The cache holds at most maxSize names.
+ */
+public class DnsCache {
+
+	static int ttl = 60000; // 1 minute
+	static int negativeTtl = 10000; // 10 seconds
+	static int maxSize = 1024;
+
+	// Queried for names not in the cache, replaced by tests
+	static Resolver resolver = new Resolver() {
+		public InetAddress resolve(final String host)
+				throws UnknownHostException {
+			return InetAddress.getByName(host);
+		}
+	};
+
+	private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	private static final ConcurrentHashMap<String, FutureTask<InetAddress>> pending = new ConcurrentHashMap<String, FutureTask<InetAddress>>();
+
+	// Public methods
+	// ///////////////
+
+	/**
+	 * Sets how long successful lookups are cached.<br>
+	 * Zero disables caching.<br>
+	 * Default is 1 minute.
+	 */
+	public static void setTtl(final int timeout) {
+		ttl = timeout;
+	}
+
+	/**
+	 * Sets how long failed lookups are cached.<br>
+	 * Default is 10 seconds.
+	 */
+	public static void setNegativeTtl(final int timeout) {
+		negativeTtl = timeout;
+	}
+
+	/**
+	 * Sets the maximum number of cached names.<br>
+	 * Default is 1024.
+	 */
+	public static void setMaxSize(final int size) {
+		maxSize = size;
+	}
+
+	/**
+	 * Drops all cached names.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Resolves host name, going to the resolver only if the name is not
+	 * cached. This methods blocks if the name needs to be resolved.
+	 *
+	 * @param host
+	 *            Host name or literal address.
+	 * @return Address of the host.
+	 * @throws UnknownHostException
+	 *             If the host can't be resolved, or failed to resolve
+	 *             recently.
+	 */
+	public static InetAddress getByName(final String host)
+			throws UnknownHostException {
+		final Entry entry = cache.get(host);
+		if ((entry != null)
+				&& (entry.expires > System.currentTimeMillis())) {
+			if (entry.ip == null) {
+				throw new UnknownHostException(host);
+			}
+			return entry.ip;
+		}
+
+		FutureTask<InetAddress> task = new FutureTask<InetAddress>(
+				new Callable<InetAddress>() {
+					public InetAddress call() throws UnknownHostException {
+						return resolver.resolve(host);
+					}
+				});
+		final FutureTask<InetAddress> running = pending.putIfAbsent(host, task);
+		if (running == null) {
+			try {
+				task.run();
+				store(host, task);
+			} finally {
+				pending.remove(host, task);
+			}
+		} else {
+			task = running;
+		}
+
+		try {
+			return task.get();
+		} catch (final ExecutionException ee) {
+			if (ee.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) ee.getCause();
+			}
+			throw new UnknownHostException(host);
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException(host);
+		}
+	}
+
+	/**
+	 * Returns cached address of the host without resolving it.
+	 *
+	 * @return Address of the host, or null if it is not cached or failed to
+	 *         resolve.
+	 */
+	public static InetAddress getCached(final String host) {
+		final Entry entry = cache.get(host);
+		if ((entry == null) || (entry.expires <= System.currentTimeMillis())) {
+			return null;
+		}
+		return entry.ip;
+	}
+
+	// Private methods
+	// ///////////////
+
+	private static void store(final String host,
+			final FutureTask<InetAddress> task) {
+		InetAddress ip;
+		try {
+			ip = task.get();
+		} catch (final Exception e) {
+			ip = null;
+		}
+
+		final int timeout = ip == null ? negativeTtl : ttl;
+		if (timeout <= 0) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		cache.put(host, new Entry(ip, now + timeout));
+		if (cache.size() > maxSize) {
+			evict(now);
+		}
+	}
+
+	/**
+	 * Drops expired names, then names closest to expiry until the cache is
+	 * back to three quarters of its maximum size.
+	 */
+	private static synchronized void evict(final long now) {
+		final Iterator<Entry> it = cache.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires <= now) {
+				it.remove();
+			}
+		}
+
+		final int target = maxSize - maxSize / 4;
+		final int excess = cache.size() - target;
+		if (excess <= 0) {
+			return;
+		}
+		final long[] expiries = new long[cache.size()];
+		int count = 0;
+		for (final Entry e : cache.values()) {
+			if (count == expiries.length) {
+				break;
+			}
+			expiries[count++] = e.expires;
+		}
+		if (count == 0) {
+			return;
+		}
+		Arrays.sort(expiries, 0, count);
+		final long threshold = expiries[Math.min(excess, count) - 1];
+
+		final Iterator<Map.Entry<String, Entry>> entries = cache.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			if (entries.next().getValue().expires <= threshold) {
+				entries.remove();
+			}
+		}
+	}
+
+	interface Resolver {
+		InetAddress resolve(String host) throws UnknownHostException;
+	}
+
+	static final class Entry {
+		final InetAddress ip; // null for failed lookups
+		final long expires;
+
+		Entry(final InetAddress ip, final long expires) {
+			this.ip = ip;
+			this.expires = expires;
+		}
+	}
+}
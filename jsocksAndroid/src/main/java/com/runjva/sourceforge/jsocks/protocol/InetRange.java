@@ -2,10 +2,15 @@ package com.runjva.sourceforge.jsocks.protocol;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class InetRange provides the means of defining the range of inetaddresses.
@@ -17,6 +22,11 @@ import java.util.Vector;
  * someones local network). It also provides methods for checking wether given
  * address is in this range. Any number of ranges and standalone addresses can
  * be added to the range.
+ * <P>
+ * Lookups do not lock the range. They use an immutable index of sorted,
+ * merged address intervals and a trie of reversed domain labels. Modifications
+ * only mark the index stale, the first lookup after them rebuilds it, so
+ * loading a list of entries builds it once.
  */
 public class InetRange implements Cloneable {
 
@@ -26,6 +36,15 @@ public class InetRange implements Cloneable {
 
 	boolean useSeparateThread = true;
 
+	volatile Index index = Index.EMPTY;
+	volatile boolean stale = false;
+
+	/**
+	 * Incremented whenever a background resolution finishes, so that ranges
+	 * sharing the entry (clones included) rebuild their index.
+	 */
+	static final AtomicInteger resolved = new AtomicInteger();
+
 	/**
 	 * Creates the empty range.
 	 */
@@ -110,6 +129,7 @@ public class InetRange implements Cloneable {
 
 		}
 
+		stale = true;
 		return true;
 	}
 
@@ -124,6 +144,7 @@ public class InetRange implements Cloneable {
 		from = to = ip2long(ip);
 		all.addElement(new Object[] { ip.getHostName(), ip, new Long(from),
 				new Long(to) });
+		stale = true;
 	}
 
 	/**
@@ -140,6 +161,7 @@ public class InetRange implements Cloneable {
 		all.addElement(new Object[] {
 				from.getHostAddress() + ":" + to.getHostAddress(), null,
 				new Long(ip2long(from)), new Long(ip2long(to)) });
+		stale = true;
 	}
 
 	/**
@@ -151,7 +173,7 @@ public class InetRange implements Cloneable {
 	 * @return true If host is in the range, false otherwise.
 	 * @see InetRange#contains(String,boolean)
 	 */
-	public synchronized boolean contains(final String host) {
+	public boolean contains(final String host) {
 		return contains(host, true);
 	}
 
@@ -179,9 +201,9 @@ public class InetRange implements Cloneable {
 	 *            required.
 	 * @return true If host is in the range, false otherwise.
 	 */
-	public synchronized boolean contains(final String host0,
-			final boolean attemptResolve) {
-		if (all.size() == 0) {
+	public boolean contains(final String host0, final boolean attemptResolve) {
+		final Index idx = index();
+		if (idx.isEmpty()) {
 			return false; // Empty range
 		}
 
@@ -190,16 +212,16 @@ public class InetRange implements Cloneable {
 			return false;
 		}
 
-		if (checkHost(host)) {
+		if (idx.checkHost(host)) {
 			return true;
 		}
-		if (checkHostEnding(host)) {
+		if (idx.checkHostEnding(host)) {
 			return true;
 		}
 
 		final long l = host2long(host);
 		if (l >= 0) {
-			return contains(l);
+			return idx.contains(l);
 		}
 
 		if (!attemptResolve) {
@@ -207,7 +229,7 @@ public class InetRange implements Cloneable {
 		}
 
 		try {
-			final InetAddress ip = InetAddress.getByName(host);
+			final InetAddress ip = DnsCache.getByName(host);
 			return contains(ip);
 		} catch (final UnknownHostException uhe) {
 
@@ -223,14 +245,18 @@ public class InetRange implements Cloneable {
 	 *            Address of the host to check.
 	 * @return true If host is in the range, false otherwise.
 	 */
-	public synchronized boolean contains(final InetAddress ip) {
-		if (checkHostEnding(ip.getHostName())) {
+	public boolean contains(final InetAddress ip) {
+		final Index idx = index();
+		if (idx.isEmpty()) {
+			return false;
+		}
+		if (idx.checkHostEnding(ip.getHostName())) {
 			return true;
 		}
-		if (checkHost(ip.getHostName())) {
+		if (idx.checkHost(ip.getHostName())) {
 			return true;
 		}
-		return contains(ip2long(ip));
+		return idx.contains(ip2long(ip));
 	}
 
 	/**
@@ -268,6 +294,7 @@ public class InetRange implements Cloneable {
 				all.removeElement(entry);
 				end_names.removeElement(s);
 				host_names.remove(s);
+				stale = true;
 				return true;
 			}
 		}
@@ -291,47 +318,87 @@ public class InetRange implements Cloneable {
 	/** Creates a clone of this Object */
 
 	@SuppressWarnings("unchecked")
-	public Object clone() {
+	public synchronized Object clone() {
 		final InetRange new_range = new InetRange();
 		new_range.all = (Vector<Object[]>) all.clone();
 		new_range.end_names = (Vector<String>) end_names.clone();
 		new_range.host_names = (Hashtable<String, Object[]>) host_names.clone();
+		new_range.stale = true;
 		return new_range;
 	}
 
 	// Private methods
 	// ///////////////
+
 	/**
-	 * Same as previous but used internally, to avoid unnecessary convertion of
-	 * IPs, when checking subranges
+	 * Returns current index, rebuilding it first if the range was modified or
+	 * some host was resolved in the background since it was built.
 	 */
-	private synchronized boolean contains(final long ip) {
-		final Enumeration<Object[]> enumx = all.elements();
-		while (enumx.hasMoreElements()) {
-			final Object[] obj = enumx.nextElement();
-			final Long from = obj[2] == null ? null : (Long) obj[2];
-			final Long to = obj[3] == null ? null : (Long) obj[3];
-			if ((from != null) && (from.longValue() <= ip)
-					&& (to.longValue() >= ip)) {
-				return true;
-			}
-
+	private Index index() {
+		// Stale is cleared after the index is published, read it first
+		final boolean modified = stale;
+		final Index idx = index;
+		if (!modified && (idx.generation == resolved.get())) {
+			return idx;
 		}
-		return false;
+		return rebuild();
 	}
 
-	private boolean checkHost(final String host) {
-		return host_names.containsKey(host);
-	}
+	/**
+	 * Builds new index from the entries and publishes it, unless another
+	 * lookup did meanwhile.
+	 */
+	synchronized Index rebuild() {
+		final int generation = resolved.get();
+		if (!stale && (index.generation == generation)) {
+			return index;
+		}
 
-	private boolean checkHostEnding(final String host) {
-		final Enumeration<String> enumx = end_names.elements();
+		int count = 0;
+		final long[][] ranges = new long[all.size()][];
+		final Enumeration<Object[]> enumx = all.elements();
 		while (enumx.hasMoreElements()) {
-			if (host.endsWith(enumx.nextElement())) {
-				return true;
+			final Object[] entry = enumx.nextElement();
+			final Long from = (Long) entry[2];
+			final Long to = (Long) entry[3];
+			if ((from != null) && (to != null)
+					&& (from.longValue() <= to.longValue())) {
+				ranges[count++] = new long[] { from.longValue(),
+						to.longValue() };
 			}
 		}
-		return false;
+		Arrays.sort(ranges, 0, count, new Comparator<long[]>() {
+			public int compare(final long[] a, final long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+
+		// Merge overlapping and adjacent intervals
+		final long[] from = new long[count];
+		final long[] to = new long[count];
+		int merged = 0;
+		for (int i = 0; i < count; ++i) {
+			if ((merged > 0) && (ranges[i][0] <= to[merged - 1] + 1)) {
+				to[merged - 1] = Math.max(to[merged - 1], ranges[i][1]);
+			} else {
+				from[merged] = ranges[i][0];
+				to[merged] = ranges[i][1];
+				++merged;
+			}
+		}
+
+		final LabelTrie endings = new LabelTrie();
+		final Enumeration<String> ends = end_names.elements();
+		while (ends.hasMoreElements()) {
+			endings.add(ends.nextElement());
+		}
+
+		final Index idx = new Index(generation, !all.isEmpty(),
+				Arrays.copyOf(from, merged), Arrays.copyOf(to, merged),
+				new HashSet<String>(host_names.keySet()), endings);
+		index = idx;
+		stale = false;
+		return idx;
 	}
 
 	private void resolve(final Object[] entry) {
@@ -434,6 +501,114 @@ public class InetRange implements Cloneable {
 	 * ******************
 	 */
 
+	/**
+	 * Immutable snapshot of the range used for lookups.
+	 */
+	static final class Index {
+
+		static final Index EMPTY = new Index(0, false, new long[0],
+				new long[0], new HashSet<String>(), new LabelTrie());
+
+		final int generation;
+		final boolean nonEmpty;
+		final long[] from;
+		final long[] to;
+		final HashSet<String> hosts;
+		final LabelTrie endings;
+
+		Index(final int generation, final boolean nonEmpty, final long[] from,
+				final long[] to, final HashSet<String> hosts,
+				final LabelTrie endings) {
+			this.generation = generation;
+			this.nonEmpty = nonEmpty;
+			this.from = from;
+			this.to = to;
+			this.hosts = hosts;
+			this.endings = endings;
+		}
+
+		boolean isEmpty() {
+			return !nonEmpty;
+		}
+
+		boolean checkHost(final String host) {
+			return hosts.contains(host);
+		}
+
+		boolean checkHostEnding(final String host) {
+			return endings.matches(host);
+		}
+
+		/**
+		 * Binary search for the last interval starting at or below ip.
+		 */
+		boolean contains(final long ip) {
+			int low = 0;
+			int high = from.length - 1;
+			while (low <= high) {
+				final int mid = (low + high) >>> 1;
+				if (from[mid] <= ip) {
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return (high >= 0) && (to[high] >= ip);
+		}
+	}
+
+	/**
+	 * Trie of domain labels, walked from the last label of the host. Endings
+	 * are of the form .myhost.com and match any host which ends with them, so
+	 * the host must have at least one more label in front of the ending.
+	 */
+	static final class LabelTrie {
+
+		final HashMap<String, LabelTrie> children = new HashMap<String, LabelTrie>();
+		boolean terminal = false;
+
+		void add(final String ending) {
+			// Leading dot is implied by terminal
+			LabelTrie node = this;
+			int end = ending.length();
+			while (end > 0) {
+				final int dot = ending.lastIndexOf('.', end - 1);
+				final String label = ending.substring(dot + 1, end);
+				LabelTrie child = node.children.get(label);
+				if (child == null) {
+					child = new LabelTrie();
+					node.children.put(label, child);
+				}
+				node = child;
+				end = dot;
+			}
+			node.terminal = true;
+		}
+
+		boolean matches(final String host) {
+			if (children.isEmpty()) {
+				return false;
+			}
+			LabelTrie node = this;
+			int end = host.length();
+			while (end >= 0) {
+				final int dot = host.lastIndexOf('.', end - 1);
+				if (dot < 0) {
+					// Host has no label left in front of this one
+					return false;
+				}
+				node = node.children.get(host.substring(dot + 1, end));
+				if (node == null) {
+					return false;
+				}
+				if (node.terminal) {
+					return true;
+				}
+				end = dot;
+			}
+			return false;
+		}
+	}
 }
 
 class InetRangeResolver implements Runnable {
@@ -472,14 +647,14 @@ class InetRangeResolver implements Runnable {
 	public void run() {
 		try {
 			if (from == null) {
-				final InetAddress ip = InetAddress.getByName((String) entry[0]);
+				final InetAddress ip = DnsCache.getByName((String) entry[0]);
 				entry[1] = ip;
 				final Long l = new Long(InetRange.ip2long(ip));
 				entry[2] = l;
 				entry[3] = l;
 			} else {
-				final InetAddress f = InetAddress.getByName(from);
-				final InetAddress t = InetAddress.getByName(to);
+				final InetAddress f = DnsCache.getByName(from);
+				final InetAddress t = DnsCache.getByName(to);
 				entry[2] = new Long(InetRange.ip2long(f));
 				entry[3] = new Long(InetRange.ip2long(t));
 
@@ -487,6 +662,7 @@ class InetRangeResolver implements Runnable {
 		} catch (final UnknownHostException uhe) {
 			// System.err.println("Resolve failed for "+from+','+to+','+entry[0]);
 		}
+		InetRange.resolved.incrementAndGet();
 	}
 
 }
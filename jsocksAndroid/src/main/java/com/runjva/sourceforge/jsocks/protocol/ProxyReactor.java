@@ -0,0 +1,651 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Non-blocking engine used by ProxyServer.
+ * <p>
+ * Instead of two threads per connection, a small fixed number of reactor
+ * threads multiplex all sessions over a Selector. Each session runs the
+ * SOCKS4/5 handshake as a state machine and then relays bytes between the
+ * client and the remote channel.
+ * <p>
+ * Only the CONNECT command to a directly reachable host is served by the
+ * reactor. BIND, UDP ASSOCIATE and requests going through a chained proxy
+ * need the blocking machinery, such sessions are handed over to a regular
+ * ProxyServer thread once the request has been read.
+ *
+ * @see ProxyServer#setReactorThreads(int)
+ */
+class ProxyReactor {
+
+	static final int GREETING_STATE = 0;
+	static final int REQUEST_STATE = 1;
+	static final int RESOLVE_STATE = 2;
+	static final int CONNECT_STATE = 3;
+	static final int PIPE_STATE = 4;
+	static final int CLOSE_STATE = 5;
+
+	final ServerAuthenticator auth;
+	final Loop[] loops;
+	final ExecutorService resolver;
+
+	ServerSocketChannel ss = null;
+	int nextLoop = 0;
+
+	/**
+	 * Creates reactor with given number of selector threads.
+	 *
+	 * @param auth
+	 *            Authenticator used to authorize requests, it must not need
+	 *            the socket streams, see ProxyServer#setReactorThreads.
+	 * @param threads
+	 *            Number of reactor threads.
+	 */
+	ProxyReactor(final ServerAuthenticator auth, final int threads) {
+		this.auth = auth;
+		this.loops = new Loop[threads];
+		this.resolver = Executors.newFixedThreadPool(Math.max(2, threads));
+	}
+
+	// Package methods
+	// ////////////////
+
+	/**
+	 * Binds the server channel and accepts connections.<br>
+	 * This methods blocks.
+	 */
+	void start(final int port, final int backlog, final InetAddress localIP)
+			throws IOException {
+		ss = ServerSocketChannel.open();
+		ss.socket().bind(new InetSocketAddress(localIP, port), backlog);
+		ProxyServer.debug("Starting SOCKS Proxy reactor on: {}:{}", ss
+				.socket().getInetAddress(), ss.socket().getLocalPort());
+
+		for (int i = 0; i < loops.length; ++i) {
+			loops[i] = new Loop();
+			final Thread t = new Thread(loops[i], "ProxyReactor-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		try {
+			while (true) {
+				final SocketChannel client = ss.accept();
+				client.configureBlocking(false);
+				client.socket().setTcpNoDelay(true);
+				ProxyServer.debug("Accepted from:{}:{}", client.socket()
+						.getInetAddress(), client.socket().getPort());
+
+				final Loop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+				loop.register(new Session(loop, client));
+			}
+		} finally {
+			stop();
+		}
+	}
+
+	/**
+	 * Stops accepting connections and closes all sessions.
+	 */
+	synchronized void stop() {
+		try {
+			if (ss != null) {
+				ss.close();
+			}
+		} catch (final IOException ioe) {
+		}
+		for (int i = 0; i < loops.length; ++i) {
+			if (loops[i] != null) {
+				loops[i].stop();
+			}
+		}
+		resolver.shutdown();
+	}
+
+	/**
+	 * One selector thread, serving any number of sessions.
+	 */
+	final class Loop implements Runnable {
+
+		final Selector selector;
+		final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		final Set<Session> sessions = new HashSet<Session>();
+		// Handshakes are decoded on the loop thread only
+		final SocksCodec codec = new SocksCodec();
+
+		volatile boolean running = true;
+
+		Loop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs the task on the reactor thread.
+		 */
+		void execute(final Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void register(final Session session) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						session.register();
+					} catch (final IOException ioe) {
+						session.close();
+					}
+				}
+			});
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					final Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						final Session session = (Session) key.attachment();
+						try {
+							session.handle(key);
+						} catch (final IOException ioe) {
+							session.fail(ioe);
+						}
+					}
+				}
+			} catch (final IOException ioe) {
+				ProxyServer.debug("Reactor loop failed", ioe);
+			} finally {
+				for (final Session session : new ArrayList<Session>(sessions)) {
+					session.close();
+				}
+				try {
+					selector.close();
+				} catch (final IOException ioe) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * State of a single client connection.
+	 */
+	final class Session {
+
+		final Loop loop;
+		final SocketChannel client;
+		SocketChannel remote = null;
+		SelectionKey clientKey = null, remoteKey = null;
+
+		// client -> remote, holds the handshake until the pipe is set up
+		final ByteBuffer up = BufferPool.acquire();
+		// remote -> client, also carries the replies
+		final ByteBuffer down = BufferPool.acquire();
+
+		boolean clientEof = false, remoteEof = false;
+		boolean upShut = false, downShut = false;
+		boolean closed = false;
+
+		int state = GREETING_STATE;
+		ProxyMessage msg = null;
+		long lastActivity;
+		// Deadline of the current state, set and cancelled on the loop thread
+		TimerWheel.Timeout deadline = null;
+
+		Session(final Loop loop, final SocketChannel client) {
+			this.loop = loop;
+			this.client = client;
+			this.lastActivity = System.currentTimeMillis();
+		}
+
+		void register() throws IOException {
+			loop.sessions.add(this);
+			clientKey = client.register(loop.selector, SelectionKey.OP_READ,
+					this);
+			expireIn(ProxyServer.handshakeTimeout);
+		}
+
+		void handle(final SelectionKey key) throws IOException {
+			if (closed || !key.isValid()) {
+				return;
+			}
+			if (key.isConnectable()) {
+				onConnected();
+			} else if (key.channel() == client) {
+				if (key.isReadable()) {
+					readClient();
+				}
+				if (!closed && key.isValid() && key.isWritable()) {
+					flush(down, client);
+				}
+			} else {
+				if (key.isReadable()) {
+					readRemote();
+				}
+				if (!closed && key.isValid() && key.isWritable()) {
+					flush(up, remote);
+				}
+			}
+			update();
+		}
+
+		private void readClient() throws IOException {
+			final int len = client.read(up);
+			if (len < 0) {
+				clientEof = true;
+			} else if (len > 0) {
+				lastActivity = System.currentTimeMillis();
+			}
+
+			if (state < PIPE_STATE) {
+				if (clientEof) {
+					close();
+					return;
+				}
+				if (state < RESOLVE_STATE) {
+					handshake();
+				}
+			}
+		}
+
+		private void readRemote() throws IOException {
+			final int len = remote.read(down);
+			if (len < 0) {
+				remoteEof = true;
+			} else if (len > 0) {
+				lastActivity = System.currentTimeMillis();
+			}
+		}
+
+		private void flush(final ByteBuffer buf, final SocketChannel to)
+				throws IOException {
+			buf.flip();
+			to.write(buf);
+			buf.compact();
+		}
+
+		// Handshake
+		// //////////
+
+		private void handshake() throws IOException {
+			final SocksCodec codec = loop.codec;
+			if (state == GREETING_STATE) {
+				final ByteBuffer view = received();
+				if (!codec.decodeGreeting(view)) {
+					return;
+				}
+				consume(view.position());
+				if (codec.version == Socks5Message.SOCKS_VERSION) {
+					final boolean found = codec.hasMethod(0);
+					SocksCodec.encodeMethod(down, found ? 0 : 0xFF);
+					if (!found) {
+						state = CLOSE_STATE;
+						return;
+					}
+				}
+				// No method negotiation in SOCKS4
+				state = REQUEST_STATE;
+			}
+
+			final ByteBuffer view = received();
+			if (!codec.decodeRequest(view)) {
+				if (!up.hasRemaining()) {
+					// Request can't be that long.
+					close();
+				}
+				return;
+			}
+			consume(view.position());
+			msg = codec.toProxyMessage();
+			handleRequest();
+		}
+
+		private void handleRequest() throws IOException {
+			if (!auth.checkRequest(msg)) {
+				throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+			}
+
+			if ((msg.command != SocksProxyBase.SOCKS_CMD_CONNECT)
+					|| (ProxyServer.proxy != null)) {
+				handOff();
+				return;
+			}
+
+			if (msg.ip == null) {
+				if (msg.host != null) {
+					resolve();
+					return;
+				}
+				throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+			}
+			ProxyServer.log(msg);
+			connect();
+		}
+
+		private void resolve() {
+			state = RESOLVE_STATE;
+			final String host = msg.host;
+			resolver.execute(new Runnable() {
+				public void run() {
+					InetAddress ip = null;
+					try {
+						ip = DnsCache.getByName(host);
+					} catch (final UnknownHostException uhe) {
+					}
+					final InetAddress resolved = ip;
+					loop.execute(new Runnable() {
+						public void run() {
+							onResolved(resolved);
+						}
+					});
+				}
+			});
+		}
+
+		private void onResolved(final InetAddress ip) {
+			if (closed) {
+				return;
+			}
+			try {
+				if (ip == null) {
+					throw new SocksException(
+							SocksProxyBase.SOCKS_HOST_UNREACHABLE);
+				}
+				msg.ip = ip;
+				ProxyServer.log(msg);
+				connect();
+				update();
+			} catch (final IOException ioe) {
+				fail(ioe);
+			}
+		}
+
+		private void connect() throws IOException {
+			state = CONNECT_STATE;
+			expireIn(ProxyServer.connectTimeout);
+			remote = SocketChannel.open();
+			if (ProxyServer.vpnService != null) {
+				ProxyServer.vpnService.protect(remote.socket());
+			}
+			remote.configureBlocking(false);
+			remoteKey = remote.register(loop.selector, 0, this);
+			if (remote.connect(new InetSocketAddress(msg.ip, msg.port))) {
+				onConnected();
+			} else {
+				remoteKey.interestOps(SelectionKey.OP_CONNECT);
+			}
+		}
+
+		private void onConnected() throws IOException {
+			remote.finishConnect();
+			final Socket s = remote.socket();
+			s.setTcpNoDelay(true);
+			ProxyServer.debug("Connected to " + s.getInetAddress() + ":"
+					+ s.getPort());
+
+			lastActivity = System.currentTimeMillis();
+			reply(SocksProxyBase.SOCKS_SUCCESS, s.getLocalAddress(),
+					s.getLocalPort());
+			state = PIPE_STATE;
+			expireIn(ProxyServer.iddleTimeout);
+		}
+
+		// Deadlines
+		// //////////
+
+		/**
+		 * Replaces the deadline of the session, zero timeout implies infinity.
+		 */
+		private void expireIn(final long timeout) {
+			if (deadline != null) {
+				deadline.cancel();
+				deadline = null;
+			}
+			if (timeout > 0) {
+				deadline = TimerWheel.shared().schedule(onTimeout, timeout);
+			}
+		}
+
+		private final Runnable onTimeout = new Runnable() {
+			public void run() {
+				loop.execute(onExpired);
+			}
+		};
+
+		private final Runnable onExpired = new Runnable() {
+			public void run() {
+				if (closed) {
+					return;
+				}
+				if (state == PIPE_STATE) {
+					// Reads only record the time, check it now.
+					final long iddle = System.currentTimeMillis()
+							- lastActivity;
+					if (iddle < ProxyServer.iddleTimeout) {
+						expireIn(ProxyServer.iddleTimeout - iddle);
+						return;
+					}
+					ProxyServer.debug("Closing iddle session");
+				} else {
+					ProxyServer.debug("Session timed out");
+				}
+				close();
+			}
+		};
+
+		/**
+		 * Passes the session to a blocking ProxyServer thread.
+		 */
+		private void handOff() throws IOException {
+			closed = true;
+			loop.sessions.remove(this);
+			clientKey.cancel();
+			expireIn(0);
+
+			// Request might have been followed by some data already.
+			final ByteBuffer view = received();
+			final byte[] pending = new byte[view.remaining()];
+			view.get(pending);
+			release();
+
+			// Key is deregistered by the next select, only then the channel
+			// can be switched to blocking mode.
+			loop.execute(new Runnable() {
+				public void run() {
+					try {
+						client.configureBlocking(true);
+						final Socket s = client.socket();
+						final InputStream in = pending.length == 0 ? s
+								.getInputStream() : new SequenceInputStream(
+								new ByteArrayInputStream(pending), s
+										.getInputStream());
+						final ServerAuthenticator session = new ServerAuthenticatorNone(
+								in, s.getOutputStream());
+						new Thread(new ProxyServer(session, s, msg)).start();
+					} catch (final IOException ioe) {
+						ProxyServer.debug("Hand over failed", ioe);
+						try {
+							client.close();
+						} catch (final IOException e) {
+						}
+					}
+				}
+			});
+		}
+
+		// Replies
+		// ////////
+
+		private void reply(final int code, final InetAddress ip, final int port) {
+			if (msg instanceof Socks4Message) {
+				SocksCodec.encodeSocks4Reply(down,
+						code == SocksProxyBase.SOCKS_SUCCESS ? Socks4Message.REPLY_OK
+								: Socks4Message.REPLY_REJECTED, ip, port);
+			} else {
+				SocksCodec.encodeSocks5Reply(down, code, ip, port);
+			}
+		}
+
+		/**
+		 * Sends error reply if the request was read, then closes session.
+		 */
+		void fail(final IOException ioe) {
+			if (closed) {
+				return;
+			}
+			if ((msg == null) || (state == PIPE_STATE)) {
+				close();
+				return;
+			}
+			ProxyServer.debug("Request failed", ioe);
+
+			if (remote != null) {
+				try {
+					remote.close();
+				} catch (final IOException e) {
+				}
+				remote = null;
+				remoteKey = null;
+			}
+			down.clear();
+			up.clear();
+			reply(ProxyServer.errorCode(ioe), null, 0);
+			state = CLOSE_STATE;
+			update();
+		}
+
+		// Buffer helpers
+		// ///////////////
+
+		/**
+		 * Bytes received from client but not consumed yet.
+		 */
+		private ByteBuffer received() {
+			final ByteBuffer view = up.duplicate();
+			view.flip();
+			return view;
+		}
+
+		private void consume(final int length) {
+			up.flip();
+			up.position(length);
+			up.compact();
+		}
+
+		/**
+		 * Updates interest sets, propagates EOF and closes finished sessions.
+		 */
+		private void update() {
+			if (closed) {
+				return;
+			}
+			try {
+				if (state == CLOSE_STATE) {
+					if (down.position() == 0) {
+						close();
+					} else {
+						clientKey.interestOps(SelectionKey.OP_WRITE);
+					}
+					return;
+				}
+
+				if (state == PIPE_STATE) {
+					if (clientEof && !upShut && (up.position() == 0)) {
+						remote.socket().shutdownOutput();
+						upShut = true;
+					}
+					if (remoteEof && !downShut && (down.position() == 0)) {
+						client.socket().shutdownOutput();
+						downShut = true;
+					}
+					if (upShut && downShut) {
+						close();
+						return;
+					}
+					int ops = 0;
+					if (!remoteEof && down.hasRemaining()) {
+						ops |= SelectionKey.OP_READ;
+					}
+					if (up.position() > 0) {
+						ops |= SelectionKey.OP_WRITE;
+					}
+					remoteKey.interestOps(ops);
+				}
+
+				int ops = 0;
+				if (!clientEof && up.hasRemaining()) {
+					ops |= SelectionKey.OP_READ;
+				}
+				if (down.position() > 0) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				clientKey.interestOps(ops);
+			} catch (final IOException ioe) {
+				close();
+			}
+		}
+
+		private void release() {
+			BufferPool.release(up);
+			BufferPool.release(down);
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			loop.sessions.remove(this);
+			expireIn(0);
+			release();
+			try {
+				client.close();
+			} catch (final IOException ioe) {
+			}
+			if (remote != null) {
+				try {
+					remote.close();
+				} catch (final IOException ioe) {
+				}
+			}
+		}
+	}
+}
@@ -12,6 +12,8 @@ import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 import android.annotation.SuppressLint;
@@ -19,6 +21,7 @@ import android.net.VpnService;
 import android.util.Log;
 
 import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
 
 /**
  * SOCKS4 and SOCKS5 proxy, handles both protocols simultaniously. Implements
@@ -40,6 +43,7 @@ public class ProxyServer implements Runnable {
 
 	Socket sock = null, remote_sock = null;
 	ServerSocket ss = null;
+	ProxyReactor reactor = null;
 	UDPRelayServer relayServer = null;
 	InputStream in, remote_in;
 	OutputStream out, remote_out;
@@ -53,15 +57,23 @@ public class ProxyServer implements Runnable {
 	static final int BUF_SIZE = 8192;
 
 	Thread pipe_thread1, pipe_thread2;
-	long lastReadTime;
+	volatile long lastReadTime;
+	boolean channelPipe = false;
+	TimerWheel.Timeout deadline = null;
 
 	static int iddleTimeout = 180000; // 3 minutes
 	static int acceptTimeout = 180000; // 3 minutes
+	static int handshakeTimeout = 30000; // 30 seconds
+	static int connectTimeout = 30000; // 30 seconds
 
 	static SocksProxyBase proxy;
 
 	static VpnService vpnService;
 
+	static int reactorThreads = 0;
+
+	static boolean channelRelay = false;
+
 	static boolean DEBUG = false;
 	
 	// Public Constructors
@@ -86,6 +98,16 @@ public class ProxyServer implements Runnable {
 		this.mode = START_MODE;
 	}
 
+	/**
+	 * Continues session handed over by ProxyReactor, request has been read
+	 * already.
+	 */
+	ProxyServer(final ServerAuthenticator auth, final Socket s,
+			final ProxyMessage msg) {
+		this(auth, s);
+		this.msg = msg;
+	}
+
 	// Public methods
 	// ///////////////
 
@@ -129,6 +151,26 @@ public class ProxyServer implements Runnable {
 		iddleTimeout = timeout;
 	}
 
+	/**
+	 * Sets how long a client may take to authenticate and send its request.
+	 * <br>
+	 * Zero timeout implies infinity.<br>
+	 * Default timeout is 30 seconds.
+	 */
+	public static void setHandshakeTimeout(final int timeout) {
+		handshakeTimeout = timeout;
+	}
+
+	/**
+	 * Sets how long the server waits for the connection to the requested
+	 * host.<br>
+	 * Zero timeout implies infinity.<br>
+	 * Default timeout is 30 seconds.
+	 */
+	public static void setConnectTimeout(final int timeout) {
+		connectTimeout = timeout;
+	}
+
 	/**
 	 * Sets the timeout for BIND command, how long the server should wait for
 	 * the incoming connection.<br>
@@ -157,6 +199,38 @@ public class ProxyServer implements Runnable {
 		UDPRelayServer.setDatagramSize(size);
 	}
 
+	/**
+	 * Sets the number of threads of the non-blocking engine.<br>
+	 * With the engine enabled CONNECT requests are served by a few selector
+	 * threads instead of two threads per connection. It is only used together
+	 * with ServerAuthenticatorNone, other schemes need blocking streams.<br>
+	 * Zero disables the engine.<br>
+	 * Default is 0.
+	 */
+	public static void setReactorThreads(final int threads) {
+		reactorThreads = threads;
+	}
+
+	/**
+	 * Enables relaying through channels with pooled direct buffers.<br>
+	 * Connections to directly reachable hosts are then piped with
+	 * SocketChannel reads and writes instead of socket streams, avoiding the
+	 * heap copy and the flush after every read.<br>
+	 * Default is false.
+	 */
+	public static void setChannelRelay(final boolean enabled) {
+		channelRelay = enabled;
+	}
+
+	/**
+	 * Sets how many direct buffers are kept for reuse by the channel relay.
+	 * <br>
+	 * Default is 64.
+	 */
+	public static void setBufferPoolSize(final int size) {
+		BufferPool.maxPooled = size;
+	}
+
 	/**
 	 * Start the Proxy server at given port.<br>
 	 * This methods blocks.
@@ -176,8 +250,25 @@ public class ProxyServer implements Runnable {
 	 */
 	public void start(final int port, final int backlog,
 			final InetAddress localIP) {
+		if ((reactorThreads > 0)
+				&& (auth.getClass() == ServerAuthenticatorNone.class)) {
+			try {
+				reactor = new ProxyReactor(auth, reactorThreads);
+				reactor.start(port, backlog, localIP);
+			} catch (final IOException ioe) {
+				ioe.printStackTrace();
+			}
+			return;
+		}
+
 		try {
-			ss = new ServerSocket(port, backlog, localIP);
+			if (channelRelay) {
+				// Accepted sockets need a channel for the relay.
+				ss = ServerSocketChannel.open().socket();
+				ss.bind(new InetSocketAddress(localIP, port), backlog);
+			} else {
+				ss = new ServerSocket(port, backlog, localIP);
+			}
 			final String address = ss.getInetAddress().getHostAddress();
 			final int localPort = ss.getLocalPort();
 			debug("Starting SOCKS Proxy on: {}:{}", address, localPort);
@@ -208,6 +299,9 @@ public class ProxyServer implements Runnable {
 			}
 		} catch (final IOException ioe) {
 		}
+		if (reactor != null) {
+			reactor.stop();
+		}
 	}
 
 	// Runnable interface
@@ -232,6 +326,7 @@ public class ProxyServer implements Runnable {
 			try {
 				doAccept();
 				mode = PIPE_MODE;
+				startIddleCheck();
 				pipe_thread1.interrupt(); // Tell other thread that connection
 				// have
 				// been accepted.
@@ -246,7 +341,11 @@ public class ProxyServer implements Runnable {
 			break;
 		case PIPE_MODE:
 			try {
-				pipe(remote_in, out);
+				if (channelPipe) {
+					pipe(remote_sock.getChannel(), sock.getChannel());
+				} else {
+					pipe(remote_in, out);
+				}
 			} catch (final IOException ioe) {
 			} finally {
 				abort();
@@ -263,8 +362,15 @@ public class ProxyServer implements Runnable {
 	// Private methods
 	// ///////////////
 	private void startSession() throws IOException {
-		sock.setSoTimeout(iddleTimeout);
+		if (msg != null) {
+			// Handed over by ProxyReactor
+			in = auth.getInputStream();
+			out = auth.getOutputStream();
+			handleRequest(msg);
+			return;
+		}
 
+		expireIn(handshakeTimeout, abortTask);
 		try {
 			auth = auth.startSession(sock);
 		} catch (final IOException ioe) {
@@ -282,6 +388,7 @@ public class ProxyServer implements Runnable {
 		out = auth.getOutputStream();
 
 		msg = readMsg(in);
+		cancelDeadline();
 		handleRequest(msg);
 	}
 
@@ -292,7 +399,7 @@ public class ProxyServer implements Runnable {
 
 		if (msg.ip == null) {
 			if (msg instanceof Socks5Message) {
-				msg.ip = InetAddress.getByName(msg.host);
+				msg.ip = DnsCache.getByName(msg.host);
 			} else {
 				throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
 			}
@@ -329,6 +436,13 @@ public class ProxyServer implements Runnable {
 			return;
 		}
 
+		sendErrorMessage(errorCode(ioe));
+	}
+
+	/**
+	 * Maps exception to the SOCKS error code sent back to the client.
+	 */
+	static int errorCode(final IOException ioe) {
 		int error_code = SocksProxyBase.SOCKS_FAILURE;
 
 		if (ioe instanceof SocksException) {
@@ -345,8 +459,7 @@ public class ProxyServer implements Runnable {
 				|| (error_code < 0)) {
 			error_code = SocksProxyBase.SOCKS_FAILURE;
 		}
-
-		sendErrorMessage(error_code);
+		return error_code;
 	}
 
 	@SuppressLint("NewApi")
@@ -360,10 +473,19 @@ public class ProxyServer implements Runnable {
 			    vpnService.protect(s);
 			}
 			
+			remote_sock = s;
+			expireIn(connectTimeout, abortTask);
 			s.connect(new InetSocketAddress(msg.ip,msg.port));
+			cancelDeadline();
 			
 		} else {
-			s = new SocksSocket(proxy, msg.ip, msg.port);
+			// The upstream socket can't be closed by abort() until it is made,
+			// so the proxy bounds the connection itself
+			final SocksProxyBase upstream = proxy.copy();
+			upstream.setConnectTimeout(connectTimeout);
+			expireIn(connectTimeout, abortTask);
+			s = new SocksSocket(upstream, msg.ip, msg.port);
+			cancelDeadline();
 
 			if (vpnService != null)
 				vpnService.protect(s);
@@ -456,7 +578,8 @@ public class ProxyServer implements Runnable {
 	}
 
 	private void onUDP(final ProxyMessage msg) throws IOException {
-		if (msg.ip.getHostAddress().equals("0.0.0.0")) {
+		// Wildcard, 0.0.0.0 or :: from a dual stack client
+		if (msg.ip.isAnyLocalAddress()) {
 			msg.ip = sock.getInetAddress();
 		}
 		debug("Creating UDP relay server for {}:{}", msg.ip, msg.port);
@@ -522,9 +645,6 @@ public class ProxyServer implements Runnable {
 		remote_in = s.getInputStream();
 		remote_out = s.getOutputStream();
 
-		// Set timeout
-		remote_sock.setSoTimeout(iddleTimeout);
-
 		final InetAddress inetAddress = s.getInetAddress();
 		final int port = s.getPort();
 		debug("Accepted from {}:{}", s.getInetAddress(), port);
@@ -568,16 +688,81 @@ public class ProxyServer implements Runnable {
 		mode = PIPE_MODE;
 		remote_sock = s;
 		try {
-			remote_in = s.getInputStream();
-			remote_out = s.getOutputStream();
+			// Writes are relayed as they come, don't let Nagle hold them back
+			sock.setTcpNoDelay(true);
+			s.setTcpNoDelay(true);
+			channelPipe = channelRelay && (auth instanceof ServerAuthenticatorNone)
+					&& (sock.getChannel() != null) && (s.getChannel() != null);
+			if (!channelPipe) {
+				remote_in = s.getInputStream();
+				remote_out = s.getOutputStream();
+			}
+			startIddleCheck();
 			pipe_thread1 = Thread.currentThread();
 			pipe_thread2 = new Thread(this);
 			pipe_thread2.start();
-			pipe(in, remote_out);
+			if (channelPipe) {
+				pipe(sock.getChannel(), s.getChannel());
+			} else {
+				pipe(in, remote_out);
+			}
 		} catch (final IOException ioe) {
 		}
 	}
 
+	/**
+	 * Aborts the session once no data has been read for iddleTimeout. Reads
+	 * only record the time, the check runs from the timer wheel and sets
+	 * itself again for the remaining time while data keeps flowing.
+	 */
+	private void startIddleCheck() {
+		lastReadTime = System.currentTimeMillis();
+		if (iddleTimeout != 0) {
+			expireIn(iddleTimeout, iddleCheck);
+		}
+	}
+
+	private final Runnable iddleCheck = new Runnable() {
+		public void run() {
+			final long timeSinceRead = System.currentTimeMillis()
+					- lastReadTime;
+			if (timeSinceRead >= iddleTimeout) {
+				debug("Closing iddle connection");
+				abort();
+			} else {
+				expireIn(iddleTimeout - timeSinceRead, this);
+			}
+		}
+	};
+
+	private final Runnable abortTask = new Runnable() {
+		public void run() {
+			debug("Session timed out");
+			abort();
+		}
+	};
+
+	/**
+	 * Sets the deadline of the current stage of the session, replacing the
+	 * previous one.
+	 */
+	private synchronized void expireIn(final long timeout, final Runnable task) {
+		if (deadline != null) {
+			deadline.cancel();
+			deadline = null;
+		}
+		if ((timeout > 0) && (mode != ABORT_MODE)) {
+			deadline = TimerWheel.shared().schedule(task, timeout);
+		}
+	}
+
+	private synchronized void cancelDeadline() {
+		if (deadline != null) {
+			deadline.cancel();
+			deadline = null;
+		}
+	}
+
 	private void sendErrorMessage(final int error_code) {
 		ProxyMessage err_msg;
 		if (msg instanceof Socks4Message) {
@@ -596,6 +781,7 @@ public class ProxyServer implements Runnable {
 			return;
 		}
 		mode = ABORT_MODE;
+		cancelDeadline();
 		try {
 			debug("Aborting operation");
 			if (remote_sock != null) {
@@ -642,18 +828,26 @@ public class ProxyServer implements Runnable {
 				len = in.read(buf);
 				lastReadTime = System.currentTimeMillis();
 			} catch (final InterruptedIOException iioe) {
-				if (iddleTimeout == 0) {
-					return;// Other thread interrupted us.
-				}
-				final long timeSinceRead = System.currentTimeMillis()
-						- lastReadTime;
+				return;// Other thread interrupted us.
+			}
+		}
+	}
 
-				if (timeSinceRead >= iddleTimeout - 1000) {
-					return;
+	private void pipe(final SocketChannel from, final SocketChannel to)
+			throws IOException {
+		lastReadTime = System.currentTimeMillis();
+		final ByteBuffer buf = BufferPool.acquire();
+		try {
+			while (from.read(buf) >= 0) {
+				lastReadTime = System.currentTimeMillis();
+				buf.flip();
+				while (buf.hasRemaining()) {
+					to.write(buf);
 				}
-				len = 0;
-
+				buf.clear();
 			}
+		} finally {
+			BufferPool.release(buf);
 		}
 	}
 
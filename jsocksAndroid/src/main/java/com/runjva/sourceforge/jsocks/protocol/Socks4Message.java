@@ -139,9 +139,8 @@ class Socks4Message extends ProxyMessage {
 
 	// Class methods
 	static InetAddress bytes2IP(final byte[] addr) {
-		final String s = bytes2IPV4(addr, 0);
 		try {
-			return InetAddress.getByName(s);
+			return InetAddress.getByAddress(addr);
 		} catch (final UnknownHostException uh_ex) {
 			return null;
 		}
@@ -112,6 +112,7 @@ public class Socks4Proxy extends SocksProxyBase implements Cloneable {
 		final Socks4Proxy copy = new Socks4Proxy(proxyIP, proxyPort, user);
 		copy.directHosts = this.directHosts;
 		copy.chainProxy = chainProxy;
+		copy.connectTimeout = connectTimeout;
 		return copy;
 	}
 
@@ -113,7 +113,7 @@ public class Socks5DatagramSocket extends DatagramSocket {
 				super.getLocalPort());
 
 		relayIP = msg.ip;
-		if (relayIP.getHostAddress().equals("0.0.0.0")) {
+		if (relayIP.isAnyLocalAddress()) {
 			// FIXME: What happens here?
 			relayIP = proxy.proxyIP;
 		}
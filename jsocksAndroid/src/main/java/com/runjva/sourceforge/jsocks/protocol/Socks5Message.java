@@ -112,6 +112,16 @@ class Socks5Message extends ProxyMessage {
 		data[data.length - 1] = (byte) (port);
 	}
 
+	/**
+	 * Message with already decoded fields, encoded only when written.
+	 */
+	Socks5Message(int cmd, int addrType, InetAddress ip, String host, int port) {
+		super(cmd, ip, port);
+		this.version = SOCKS_VERSION;
+		this.addrType = addrType;
+		this.host = host;
+	}
+
 	/**
 	 * Initialises Message from the stream. Reads server response from given
 	 * stream.
@@ -207,7 +217,7 @@ class Socks5Message extends ProxyMessage {
 		case SOCKS_ATYP_IPV6:
 			addr = new byte[SOCKS_IPV6_LENGTH];// I believe it is 16 bytes,huge!
 			di.readFully(addr);
-			host = bytes2IPV6(addr, 0);
+			host = InetAddress.getByAddress(addr).getHostAddress();
 			break;
 		case SOCKS_ATYP_DOMAINNAME:
 			//log.debug("Reading ATYP_DOMAINNAME");
@@ -222,10 +232,8 @@ class Socks5Message extends ProxyMessage {
 		port = di.readUnsignedShort();
 
 		if ((addrType != SOCKS_ATYP_DOMAINNAME) && doResolveIP) {
-			try {
-				ip = InetAddress.getByName(host);
-			} catch (final UnknownHostException uh_ex) {
-			}
+			// Literal address, no need to parse host back
+			ip = InetAddress.getByAddress(host, addr);
 		}
 	}
 
@@ -23,6 +23,9 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 	boolean resolveAddrLocally = true;
 	UDPEncapsulation udp_encapsulation = null;
 
+	Socks5SessionPool sessionPool = null;
+	private boolean pooled = false;
+
 	// Public Constructors
 	// ====================
 
@@ -156,6 +159,29 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 		return (Authentication) method;
 	}
 
+	/**
+	 * Keeps given number of sessions to this proxy opened and authenticated
+	 * in advance, so that requests don't wait for method negotiation and
+	 * authentication. Each session is used for one request only. Sessions
+	 * unused for idleTimeout milliseconds are closed and replaced.<br>
+	 * Zero size disables the pool.<br>
+	 * Default is 0.
+	 * 
+	 * @param size
+	 *            Number of sessions to keep ready.
+	 * @param idleTimeout
+	 *            How long an unused session is kept, zero implies infinity.
+	 */
+	public synchronized void setSessionPool(int size, int idleTimeout) {
+		if (sessionPool != null) {
+			sessionPool.shutdown();
+			sessionPool = null;
+		}
+		if (size > 0) {
+			sessionPool = new Socks5SessionPool(this, size, idleTimeout);
+		}
+	}
+
 	/**
 	 * Creates a clone of this Proxy. clone() returns an
 	 */
@@ -185,14 +211,73 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 		copy.directHosts = this.directHosts;
 		copy.chainProxy = this.chainProxy;
 		copy.resolveAddrLocally = this.resolveAddrLocally;
+		copy.sessionPool = this.sessionPool;
+		copy.connectTimeout = this.connectTimeout;
 		return copy;
 	}
 
-	/**
-    *
-    *
-    */
 	protected void startSession() throws SocksException {
+		pooled = false;
+		final Socks5SessionPool pool = sessionPool;
+		final Socks5SessionPool.Session session = pool == null ? null : pool
+				.take();
+		if (session != null) {
+			try {
+				// Pooled sockets were opened with the timeout of that time
+				session.socket.setSoTimeout(connectTimeout);
+			} catch (final SocketException se) {
+				session.close();
+				negotiate();
+				return;
+			}
+			proxySocket = session.socket;
+			in = session.in;
+			out = session.out;
+			selectedMethod = session.method;
+			udp_encapsulation = session.udpEncapsulation;
+			pooled = true;
+			return;
+		}
+		negotiate();
+	}
+
+	/**
+	 * Sends the request, retrying once on a newly negotiated session if a
+	 * pooled one turns out to be closed by the proxy.
+	 */
+	protected ProxyMessage exchange(final ProxyMessage request)
+			throws SocksException {
+		if (!pooled) {
+			return super.exchange(request);
+		}
+		pooled = false;
+		try {
+			return super.exchange(request);
+		} catch (final SocksException se) {
+			if (se.getErrorCode() != SOCKS_PROXY_IO_ERROR) {
+				throw se;
+			}
+			ProxyServer.debug("Pooled session failed, negotiating a new one",
+					se);
+			endSession();
+			negotiate();
+			return super.exchange(request);
+		}
+	}
+
+	/**
+	 * Opens a negotiated session for the session pool.
+	 */
+	Socks5SessionPool.Session openSession() throws SocksException {
+		negotiate();
+		return new Socks5SessionPool.Session(proxySocket, in, out,
+				selectedMethod, udp_encapsulation);
+	}
+
+	/**
+	 * Connects to the proxy, then negotiates and performs authentication.
+	 */
+	private void negotiate() throws SocksException {
 		super.startSession();
 		Authentication auth;
 		final Socket ps = proxySocket; // The name is too long
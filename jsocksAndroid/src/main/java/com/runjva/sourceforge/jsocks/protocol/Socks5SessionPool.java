@@ -0,0 +1,158 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a number of sessions to a SOCKS5 proxy opened, with method
+ * negotiation and authentication already done, so that a request can be sent
+ * right away.
+ * <p>
+ * Each session is handed out once and then belongs to the caller. The pool
+ * is refilled in the background, and sessions which stayed unused for longer
+ * than idleTimeout are closed, before the proxy server drops them.
+ *
+ * @see Socks5Proxy#setSessionPool(int, int)
+ */
+class Socks5SessionPool {
+
+	final Socks5Proxy proxy;
+	final int size;
+	final int idleTimeout;
+
+	private final ConcurrentLinkedQueue<Session> sessions = new ConcurrentLinkedQueue<Session>();
+	private final ScheduledExecutorService executor;
+
+	private final Runnable refill = new Runnable() {
+		public void run() {
+			refill();
+		}
+	};
+
+	Socks5SessionPool(final Socks5Proxy proxy, final int size,
+			final int idleTimeout) {
+		this.proxy = proxy;
+		this.size = size;
+		this.idleTimeout = idleTimeout;
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "Socks5SessionPool");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final long period = idleTimeout > 0 ? Math.max(1000, idleTimeout / 2)
+				: 60000;
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evict();
+				refill();
+			}
+		}, 0, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes a ready session out of the pool.
+	 *
+	 * @return Session, or null if none is ready.
+	 */
+	Session take() {
+		Session session;
+		while ((session = sessions.poll()) != null) {
+			if (!isStale(session, System.currentTimeMillis())) {
+				break;
+			}
+			session.close();
+		}
+		try {
+			executor.execute(refill);
+		} catch (final RejectedExecutionException ree) {
+			// Pool has been shut down.
+		}
+		return session;
+	}
+
+	/**
+	 * Closes pooled sessions and stops refilling.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+		Session session;
+		while ((session = sessions.poll()) != null) {
+			session.close();
+		}
+	}
+
+	// Private methods
+	// ///////////////
+
+	private void refill() {
+		while (sessions.size() < size) {
+			try {
+				final Socks5Proxy p = (Socks5Proxy) proxy.copy();
+				sessions.add(p.openSession());
+			} catch (final SocksException se) {
+				// Try again on the next sweep.
+				ProxyServer.debug("Could not open pooled session", se);
+				return;
+			}
+			if (executor.isShutdown()) {
+				shutdown();
+				return;
+			}
+		}
+	}
+
+	private boolean isStale(final Session session, final long now) {
+		return (idleTimeout > 0) && (now - session.created >= idleTimeout);
+	}
+
+	private void evict() {
+		final long now = System.currentTimeMillis();
+		for (final Session session : sessions) {
+			if (isStale(session, now) && sessions.remove(session)) {
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Negotiated connection to the proxy.
+	 */
+	static final class Session {
+
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		final int method;
+		final UDPEncapsulation udpEncapsulation;
+		final long created;
+
+		Session(final Socket socket, final InputStream in,
+				final OutputStream out, final int method,
+				final UDPEncapsulation udpEncapsulation) {
+			this.socket = socket;
+			this.in = in;
+			this.out = out;
+			this.method = method;
+			this.udpEncapsulation = udpEncapsulation;
+			this.created = System.currentTimeMillis();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (final IOException ioe) {
+			}
+		}
+	}
+}
@@ -0,0 +1,487 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes SOCKS4/4a/5 messages and SOCKS5 UDP headers directly
+ * from and into ByteBuffers.
+ * <p>
+ * A codec holds the fields of the last decoded message. Addresses are kept
+ * as bytes, they are only turned into an InetAddress or a String when asked
+ * for. The decode methods can be called again and again as input arrives,
+ * they return false and leave the buffer untouched until the whole message
+ * is there, so the codec can drive a non-blocking server. A codec is reused
+ * for every message, it is not thread safe.
+ */
+class SocksCodec {
+
+	static final int MAX_USER_LENGTH = 255;
+	static final int MAX_HOST_LENGTH = 255;
+
+	/** VER of the message, or VN of a SOCKS4 reply */
+	int version;
+	/** CMD of a request, REP of a SOCKS5 reply or CD of a SOCKS4 one */
+	int command;
+	/** ATYP, SOCKS4 messages use IPV4 or DOMAINNAME for SOCKS4a */
+	int addrType;
+	/** FRAG of an UDP header */
+	int frag;
+	int port;
+
+	/** IP address, or host name bytes for ATYP DOMAINNAME */
+	final byte[] addr = new byte[MAX_HOST_LENGTH];
+	int addrLength;
+
+	/** USERID of a SOCKS4 request */
+	final byte[] user = new byte[MAX_USER_LENGTH];
+	int userLength;
+
+	/** METHODS of a SOCKS5 greeting */
+	final byte[] methods = new byte[255];
+	int methodCount;
+
+	// Decoding
+	// /////////
+
+	/**
+	 * Decodes the SOCKS5 method selection message of a client. A SOCKS4
+	 * client sends no such message, in that case version is set to 4 and
+	 * nothing is consumed.
+	 *
+	 * @return true if the greeting is complete.
+	 * @throws SocksException
+	 *             If the client speaks neither SOCKS4 nor SOCKS5.
+	 */
+	boolean decodeGreeting(final ByteBuffer in) throws SocksException {
+		final int start = in.position();
+		final int available = in.remaining();
+		if (available < 1) {
+			return false;
+		}
+		version = in.get(start);
+		if (version == Socks4Message.SOCKS_VERSION) {
+			methodCount = 0;
+			return true;
+		}
+		if (version != Socks5Message.SOCKS_VERSION) {
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+		// VER NMETHODS METHODS
+		if (available < 2) {
+			return false;
+		}
+		final int count = in.get(start + 1) & 0xFF;
+		if (count == 0) {
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+		if (available < 2 + count) {
+			return false;
+		}
+		in.position(start + 2);
+		in.get(methods, 0, count);
+		methodCount = count;
+		return true;
+	}
+
+	/**
+	 * @return true if the last decoded greeting offered the method.
+	 */
+	boolean hasMethod(final int method) {
+		for (int i = 0; i < methodCount; ++i) {
+			if ((methods[i] & 0xFF) == method) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decodes a SOCKS4, SOCKS4a or SOCKS5 request of a client.
+	 *
+	 * @return true if the request is complete.
+	 * @throws SocksException
+	 *             If the request is malformed.
+	 */
+	boolean decodeRequest(final ByteBuffer in) throws SocksException {
+		if (in.remaining() < 1) {
+			return false;
+		}
+		final int v = in.get(in.position());
+		if (v == Socks4Message.SOCKS_VERSION) {
+			return decodeSocks4(in);
+		}
+		if (v == Socks5Message.SOCKS_VERSION) {
+			return decodeSocks5(in);
+		}
+		throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+	}
+
+	/**
+	 * Decodes the reply of a server to a request of the given version.
+	 *
+	 * @return true if the reply is complete.
+	 * @throws SocksException
+	 *             If the reply is malformed.
+	 */
+	boolean decodeReply(final ByteBuffer in, final int requestVersion)
+			throws SocksException {
+		if (requestVersion == Socks5Message.SOCKS_VERSION) {
+			return decodeSocks5(in);
+		}
+		// VN CD DSTPORT DSTIP
+		final int start = in.position();
+		if (in.remaining() < 8) {
+			return false;
+		}
+		version = in.get(start);
+		command = in.get(start + 1) & 0xFF;
+		port = readPort(in, start + 2);
+		addrType = Socks5Message.SOCKS_ATYP_IPV4;
+		addrLength = 4;
+		in.position(start + 4);
+		in.get(addr, 0, 4);
+		userLength = 0;
+		return true;
+	}
+
+	/**
+	 * Decodes the header of a SOCKS5 UDP datagram. On success the buffer is
+	 * positioned at the data.
+	 *
+	 * @return false if the datagram is shorter than its header.
+	 * @throws SocksException
+	 *             If the address type is unknown.
+	 */
+	boolean decodeUdpHeader(final ByteBuffer in) throws SocksException {
+		// RSV(2) FRAG(1) ATYP(1) DST.ADDR DST.PORT DATA
+		final int start = in.position();
+		if (in.remaining() < 4) {
+			return false;
+		}
+		frag = in.get(start + 2) & 0xFF;
+		if (!decodeAddress(in, start + 3)) {
+			return false;
+		}
+		version = 0;
+		command = 0;
+		return true;
+	}
+
+	// Encoding
+	// /////////
+
+	/**
+	 * Writes the held message as a request of its version: VN CD DSTPORT
+	 * DSTIP USERID NULL [HOST NULL] for SOCKS4/4a, VER CMD RSV ATYP DST.ADDR
+	 * DST.PORT for SOCKS5.
+	 */
+	void encodeRequest(final ByteBuffer out) {
+		if (version == Socks4Message.SOCKS_VERSION) {
+			out.put((byte) version);
+			out.put((byte) command);
+			putPort(out, port);
+			if (addrType == Socks5Message.SOCKS_ATYP_DOMAINNAME) {
+				// SOCKS4a, 0.0.0.x with x non zero
+				out.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+			} else {
+				out.put(addr, 0, 4);
+			}
+			out.put(user, 0, userLength);
+			out.put((byte) 0);
+			if (addrType == Socks5Message.SOCKS_ATYP_DOMAINNAME) {
+				out.put(addr, 0, addrLength);
+				out.put((byte) 0);
+			}
+		} else {
+			encodeSocks5(out, command, addrType, addr, addrLength, port);
+		}
+	}
+
+	/**
+	 * Writes the held address as a SOCKS5 UDP header.
+	 */
+	void encodeUdpHeader(final ByteBuffer out) {
+		out.put((byte) 0);
+		out.put((byte) 0);
+		out.put((byte) frag);
+		putAddress(out, addrType, addr, addrLength);
+		putPort(out, port);
+	}
+
+	/**
+	 * Writes SOCKS5 method selection reply.
+	 */
+	static void encodeMethod(final ByteBuffer out, final int method) {
+		out.put((byte) Socks5Message.SOCKS_VERSION);
+		out.put((byte) method);
+	}
+
+	/**
+	 * Writes VER CMD RSV ATYP ADDR PORT, layout shared by SOCKS5 requests and
+	 * replies.
+	 */
+	static void encodeSocks5(final ByteBuffer out, final int command,
+			final int addrType, final byte[] addr, final int addrLength,
+			final int port) {
+		out.put((byte) Socks5Message.SOCKS_VERSION);
+		out.put((byte) command);
+		out.put((byte) 0);
+		putAddress(out, addrType, addr, addrLength);
+		putPort(out, port);
+	}
+
+	/**
+	 * Writes SOCKS5 reply for the given address, which may be null.
+	 */
+	static void encodeSocks5Reply(final ByteBuffer out, final int code,
+			final InetAddress ip, final int port) {
+		final byte[] a = ip == null ? new byte[4] : ip.getAddress();
+		encodeSocks5(out, code, atyp(a.length), a, a.length, port);
+	}
+
+	/**
+	 * Writes SOCKS4 reply, VN is 0 and only IPv4 addresses fit.
+	 */
+	static void encodeSocks4Reply(final ByteBuffer out, final int code,
+			final InetAddress ip, final int port) {
+		out.put((byte) 0);
+		out.put((byte) code);
+		putPort(out, port);
+		if ((ip != null) && (ip.getAddress().length == 4)) {
+			out.put(ip.getAddress());
+		} else {
+			out.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0);
+		}
+	}
+
+	/**
+	 * Writes SOCKS5 UDP header in front of data which starts at the current
+	 * position of the buffer, the header must fit before it. On return the
+	 * buffer is positioned at the header.
+	 *
+	 * @return Length of the header.
+	 */
+	static int prependUdpHeader(final ByteBuffer buf, final byte[] addr,
+			final int port) {
+		final int data = buf.position();
+		final int length = 4 + addr.length + 2;
+		buf.position(data - length);
+		buf.put((byte) 0);
+		buf.put((byte) 0);
+		buf.put((byte) 0);
+		putAddress(buf, atyp(addr.length), addr, addr.length);
+		putPort(buf, port);
+		buf.position(data - length);
+		return length;
+	}
+
+	// Accessors
+	// //////////
+
+	/**
+	 * Sets the address to the IP.
+	 */
+	void setAddress(final InetAddress ip) {
+		final byte[] a = ip.getAddress();
+		System.arraycopy(a, 0, addr, 0, a.length);
+		addrLength = a.length;
+		addrType = atyp(a.length);
+	}
+
+	/**
+	 * Sets the address to the host name, ATYP DOMAINNAME.
+	 */
+	void setHost(final String host) {
+		addrLength = 0;
+		for (int i = 0; (i < host.length()) && (i < MAX_HOST_LENGTH); ++i) {
+			addr[addrLength++] = (byte) host.charAt(i);
+		}
+		addrType = Socks5Message.SOCKS_ATYP_DOMAINNAME;
+	}
+
+	boolean isHost() {
+		return addrType == Socks5Message.SOCKS_ATYP_DOMAINNAME;
+	}
+
+	/**
+	 * @return Address as IP, or null if it is a host name.
+	 */
+	InetAddress getInetAddress() throws UnknownHostException {
+		if (isHost()) {
+			return null;
+		}
+		final byte[] a = new byte[addrLength];
+		System.arraycopy(addr, 0, a, 0, addrLength);
+		return InetAddress.getByAddress(a);
+	}
+
+	/**
+	 * @return Host name, or the textual form of the IP.
+	 */
+	String getHost() throws UnknownHostException {
+		if (isHost()) {
+			return new String(addr, 0, addrLength);
+		}
+		return getInetAddress().getHostAddress();
+	}
+
+	/**
+	 * Builds the stream based message equivalent to the held request, for
+	 * the parts of the server which work on ProxyMessage.
+	 */
+	ProxyMessage toProxyMessage() throws UnknownHostException {
+		final InetAddress ip = getInetAddress();
+		if (version == Socks4Message.SOCKS_VERSION) {
+			final Socks4Message msg = new Socks4Message(version, command, ip,
+					port, new String(user, 0, userLength));
+			if (ip == null) {
+				msg.host = getHost();
+			}
+			return msg;
+		}
+		return new Socks5Message(command, addrType, ip, getHost(), port);
+	}
+
+	// Private methods
+	// ////////////////
+
+	private boolean decodeSocks4(final ByteBuffer in) throws SocksException {
+		// VN CD DSTPORT DSTIP USERID NULL [HOST NULL]
+		final int start = in.position();
+		final int limit = in.limit();
+		final int userEnd = find(in, start + 8, MAX_USER_LENGTH);
+		if (userEnd < 0) {
+			return false;
+		}
+		// 0.0.0.x with x non zero means the host name follows, SOCKS4a
+		final boolean socks4a = (in.get(start + 4) == 0)
+				&& (in.get(start + 5) == 0) && (in.get(start + 6) == 0)
+				&& (in.get(start + 7) != 0);
+		int end = userEnd;
+		if (socks4a) {
+			if (userEnd + 1 >= limit) {
+				return false;
+			}
+			end = find(in, userEnd + 1, MAX_HOST_LENGTH);
+			if (end < 0) {
+				return false;
+			}
+		}
+
+		version = in.get(start);
+		command = in.get(start + 1) & 0xFF;
+		port = readPort(in, start + 2);
+		in.position(start + 8);
+		userLength = userEnd - start - 8;
+		in.get(user, 0, userLength);
+		if (socks4a) {
+			addrType = Socks5Message.SOCKS_ATYP_DOMAINNAME;
+			addrLength = end - userEnd - 1;
+			in.position(userEnd + 1);
+			in.get(addr, 0, addrLength);
+		} else {
+			addrType = Socks5Message.SOCKS_ATYP_IPV4;
+			addrLength = 4;
+			in.position(start + 4);
+			in.get(addr, 0, 4);
+		}
+		in.position(end + 1);
+		return true;
+	}
+
+	private boolean decodeSocks5(final ByteBuffer in) throws SocksException {
+		// VER CMD RSV ATYP DST.ADDR DST.PORT
+		final int start = in.position();
+		if (in.remaining() < 5) {
+			return false;
+		}
+		if (!decodeAddress(in, start + 3)) {
+			return false;
+		}
+		version = in.get(start);
+		command = in.get(start + 1) & 0xFF;
+		userLength = 0;
+		return true;
+	}
+
+	/**
+	 * Decodes ATYP ADDR PORT at the offset and moves past it.
+	 */
+	private boolean decodeAddress(final ByteBuffer in, final int offset)
+			throws SocksException {
+		if (in.limit() < offset + 2) {
+			return false;
+		}
+		final int type = in.get(offset);
+		int start = offset + 1;
+		int length;
+		switch (type) {
+		case Socks5Message.SOCKS_ATYP_IPV4:
+			length = 4;
+			break;
+		case Socks5Message.SOCKS_ATYP_IPV6:
+			length = Socks5Message.SOCKS_IPV6_LENGTH;
+			break;
+		case Socks5Message.SOCKS_ATYP_DOMAINNAME:
+			length = in.get(start) & 0xFF;
+			++start;
+			break;
+		default:
+			throw new SocksException(SocksProxyBase.SOCKS_JUST_ERROR);
+		}
+		if (in.limit() < start + length + 2) {
+			return false;
+		}
+		addrType = type;
+		addrLength = length;
+		in.position(start);
+		in.get(addr, 0, length);
+		port = readPort(in, start + length);
+		in.position(start + length + 2);
+		return true;
+	}
+
+	/**
+	 * Finds the NULL terminating a string of at most max bytes.
+	 *
+	 * @return Index of the NULL, or -1 if it is not there yet.
+	 */
+	private static int find(final ByteBuffer in, final int from, final int max)
+			throws SocksException {
+		final int limit = in.limit();
+		for (int i = from; i < limit; ++i) {
+			if (in.get(i) == 0) {
+				return i;
+			}
+			if (i - from >= max) {
+				throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+			}
+		}
+		return -1;
+	}
+
+	private static int readPort(final ByteBuffer in, final int index) {
+		return ((in.get(index) & 0xFF) << 8) | (in.get(index + 1) & 0xFF);
+	}
+
+	private static void putPort(final ByteBuffer out, final int port) {
+		out.put((byte) (port >> 8));
+		out.put((byte) port);
+	}
+
+	private static void putAddress(final ByteBuffer out, final int addrType,
+			final byte[] addr, final int addrLength) {
+		out.put((byte) addrType);
+		if (addrType == Socks5Message.SOCKS_ATYP_DOMAINNAME) {
+			out.put((byte) addrLength);
+		}
+		out.put(addr, 0, addrLength);
+	}
+
+	private static int atyp(final int addrLength) {
+		return addrLength == 4 ? Socks5Message.SOCKS_ATYP_IPV4
+				: Socks5Message.SOCKS_ATYP_IPV6;
+	}
+}
@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
@@ -29,6 +30,8 @@ public abstract class SocksProxyBase {
 
 	protected int version;
 
+	protected int connectTimeout = 0;
+
 	protected SocksProxyBase chainProxy = null;
 
 	// Protected static/class variables
@@ -179,6 +182,18 @@ public abstract class SocksProxyBase {
 		return chainProxy;
 	}
 
+	/**
+	 * Sets how long to wait for the connection to this proxy, and for each of
+	 * its replies until the requested connection is made.<br>
+	 * Zero timeout implies infinity.
+	 * 
+	 * @param timeout
+	 *            Timeout in milliseconds.
+	 */
+	public void setConnectTimeout(int timeout) {
+		this.connectTimeout = timeout;
+	}
+
 	/**
 	 * Get string representation of this proxy.
 	 * 
@@ -337,13 +352,17 @@ public abstract class SocksProxyBase {
 	protected void startSession() throws SocksException {
 		try {
 			if (chainProxy == null) {
-				proxySocket = new Socket(proxyIP, proxyPort);
+				proxySocket = new Socket();
+				proxySocket.connect(new InetSocketAddress(proxyIP, proxyPort),
+						connectTimeout);
 			} else if (proxyIP != null) {
 				proxySocket = new SocksSocket(chainProxy, proxyIP, proxyPort);
 			} else {
 				proxySocket = new SocksSocket(chainProxy, proxyHost, proxyPort);
 			}
 
+			// Bounds the negotiation and the reply, see exchange()
+			proxySocket.setSoTimeout(connectTimeout);
 			in = proxySocket.getInputStream();
 			out = proxySocket.getOutputStream();
 		} catch (final SocksException se) {
@@ -503,6 +522,9 @@ public abstract class SocksProxyBase {
 		try {
 			request.write(out);
 			reply = formMessage(in);
+			if (connectTimeout > 0) {
+				proxySocket.setSoTimeout(0);
+			}
 		} catch (final SocksException s_ex) {
 			throw s_ex;
 		} catch (final IOException ioe) {
@@ -118,7 +118,7 @@ public class SocksSocket extends Socket {
 		remoteHost = host;
 		remotePort = port;
 		if (proxy.isDirect(host)) {
-			remoteIP = InetAddress.getByName(host);
+			remoteIP = DnsCache.getByName(host);
 			doDirect();
 		} else {
 			processReply(proxy.connect(host, port));
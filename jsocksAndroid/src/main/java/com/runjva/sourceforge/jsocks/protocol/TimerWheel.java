@@ -0,0 +1,186 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel tracking the handshake, connect and iddle deadlines of
+ * all sessions of the package.
+ * <p>
+ * A single daemon thread advances the wheel one slot per tick, and runs the
+ * tasks of the timeouts falling due in that slot. Scheduling and cancelling
+ * are constant time and lock free, so deadlines can be set for every session
+ * without any per socket wakeups. The thread sleeps while nothing is
+ * scheduled. Tasks run on the wheel thread, they must be short, handing
+ * longer work to another thread.
+ */
+class TimerWheel {
+
+	static final int TICK = 250; // Milliseconds
+	static final int SLOTS = 512; // Power of two
+
+	private static TimerWheel shared = null;
+
+	private final Timeout[] wheel = new Timeout[SLOTS];
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pending = new AtomicInteger();
+	final long start = System.currentTimeMillis();
+	long tick = 0; // Owned by the wheel thread
+
+	/**
+	 * Wheel shared by ProxyServer, ProxyReactor and UDPRelayServer.
+	 */
+	static synchronized TimerWheel shared() {
+		if (shared == null) {
+			shared = new TimerWheel();
+			final Thread t = new Thread(new Runnable() {
+				public void run() {
+					shared.run();
+				}
+			}, "TimerWheel");
+			t.setDaemon(true);
+			t.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Runs the task once delay milliseconds have passed, give or take a tick.
+	 *
+	 * @return Timeout which can be cancelled.
+	 */
+	Timeout schedule(final Runnable task, final long delay) {
+		return scheduleAt(task, System.currentTimeMillis() + Math.max(0, delay));
+	}
+
+	/**
+	 * Runs the task at the first tick at or after the deadline.
+	 *
+	 * @return Timeout which can be cancelled.
+	 */
+	Timeout scheduleAt(final Runnable task, final long deadline) {
+		final Timeout timeout = new Timeout(task, deadline);
+		added.add(timeout);
+		if (pending.getAndIncrement() == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		return timeout;
+	}
+
+	// Private methods
+	// ////////////////
+
+	private void run() {
+		while (true) {
+			try {
+				awaitTick();
+			} catch (final InterruptedException ie) {
+				return;
+			}
+			transferAdded();
+			expire();
+		}
+	}
+
+	private void awaitTick() throws InterruptedException {
+		synchronized (this) {
+			while (pending.get() == 0) {
+				wait();
+				// Nothing moved while idle, pick up from the current time
+				tick = (System.currentTimeMillis() - start) / TICK;
+			}
+		}
+		final long next = start + (tick + 1) * TICK;
+		final long sleep = next - System.currentTimeMillis();
+		if (sleep > 0) {
+			Thread.sleep(sleep);
+		}
+		++tick;
+	}
+
+	void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() == Timeout.CANCELLED) {
+				pending.decrementAndGet();
+				continue;
+			}
+			// First tick at or after the deadline, never one already passed
+			final long due = Math.max(tick, (timeout.deadline - start + TICK - 1)
+					/ TICK);
+			timeout.rounds = (due - tick) / SLOTS;
+			final int slot = (int) (due & (SLOTS - 1));
+			timeout.next = wheel[slot];
+			wheel[slot] = timeout;
+		}
+	}
+
+	void expire() {
+		final int slot = (int) (tick & (SLOTS - 1));
+		Timeout prev = null;
+		Timeout timeout = wheel[slot];
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			final boolean cancelled = timeout.state.get() == Timeout.CANCELLED;
+			if (cancelled || (timeout.rounds <= 0)) {
+				// Unlink
+				if (prev == null) {
+					wheel[slot] = next;
+				} else {
+					prev.next = next;
+				}
+				timeout.next = null;
+				pending.decrementAndGet();
+				if (!cancelled && timeout.state.compareAndSet(Timeout.WAITING,
+						Timeout.EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (final RuntimeException re) {
+						ProxyServer.debug("Timeout task failed", re);
+					}
+				}
+			} else {
+				if (timeout.rounds > 0) {
+					--timeout.rounds;
+				}
+				prev = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	static final class Timeout {
+
+		static final int WAITING = 0;
+		static final int CANCELLED = 1;
+		static final int EXPIRED = 2;
+
+		final Runnable task;
+		final long deadline;
+		final AtomicInteger state = new AtomicInteger(WAITING);
+
+		// Owned by the wheel thread
+		long rounds;
+		Timeout next;
+
+		Timeout(final Runnable task, final long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Prevents the task from running, unless it runs already.
+		 *
+		 * @return false if the task has run or is running.
+		 */
+		boolean cancel() {
+			return state.compareAndSet(WAITING, CANCELLED)
+					|| (state.get() == CANCELLED);
+		}
+	}
+}
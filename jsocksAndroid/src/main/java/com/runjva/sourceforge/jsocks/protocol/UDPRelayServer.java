@@ -5,13 +5,32 @@ import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
 
 /**
  * UDP Relay server, used by ProxyServer to perform udp forwarding.
+ * <p>
+ * Associations relayed directly, without upstream proxy or UDP
+ * encapsulation, are served by one shared event loop over DatagramChannels.
+ * Each wakeup drains several datagrams, and SOCKS5 headers are parsed and
+ * written in place in a buffer reused for all datagrams. Other associations
+ * use two threads, moving one datagram at a time.
  */
 class UDPRelayServer implements Runnable {
 
@@ -28,12 +47,21 @@ class UDPRelayServer implements Runnable {
 
 	ServerAuthenticator auth;
 
-	long lastReadTime;
-	
+	volatile long lastReadTime;
+	boolean aborted = false;
+	TimerWheel.Timeout deadline = null;
+
+	// Channel mode
+	DatagramChannel client_ch;
+	DatagramChannel remote_ch;
+	InetSocketAddress clientAddress;
+
 	static SocksProxyBase proxy = null;
 	static int datagramSize = 0xFFFF;// 64K, a bit more than max udp size
 	static int iddleTimeout = 180000;// 3 minutes
 
+	static Loop loop = null;
+
 	/**
 	 * Constructs UDP relay server to communicate with client on given ip and
 	 * port.
@@ -60,6 +88,21 @@ class UDPRelayServer implements Runnable {
 		this.controlConnection = controlConnection;
 		this.auth = auth;
 
+		if ((proxy == null) && (auth.getUdpEncapsulation() == null)) {
+			clientAddress = new InetSocketAddress(clientIP, clientPort);
+			client_ch = DatagramChannel.open();
+			client_ch.socket().bind(new InetSocketAddress(0));
+			remote_ch = DatagramChannel.open();
+			remote_ch.socket().bind(new InetSocketAddress(0));
+
+			relayPort = client_ch.socket().getLocalPort();
+			relayIP = client_ch.socket().getLocalAddress();
+			if (relayIP.isAnyLocalAddress()) {
+				relayIP = InetAddress.getLocalHost();
+			}
+			return;
+		}
+
 		client_sock = new Socks5DatagramSocket(true,
 				auth.getUdpEncapsulation(), clientIP, clientPort);
 
@@ -117,8 +160,22 @@ class UDPRelayServer implements Runnable {
 	 * Starts udp relay server. Spawns two threads of execution and returns.
 	 */
 	public void start() throws IOException {
-		remote_sock.setSoTimeout(iddleTimeout);
-		client_sock.setSoTimeout(iddleTimeout);
+		lastReadTime = System.currentTimeMillis();
+		if (client_ch != null) {
+			// Registered under the lock, so a loop that exits either
+			// drains this relay or is replaced before it
+			synchronized (UDPRelayServer.class) {
+				if (loop == null) {
+					loop = new Loop();
+					final Thread t = new Thread(loop, "UDPRelay");
+					t.setDaemon(true);
+					t.start();
+				}
+				loop.register(this);
+			}
+			startIddleCheck();
+			return;
+		}
 
 		//log.info("Starting UDP relay server on {}:{}", relayIP, relayPort);
 		//log.info("Remote socket {}:{}", remote_sock.getLocalAddress(),
@@ -131,6 +188,7 @@ class UDPRelayServer implements Runnable {
 
 		pipe_thread1.start();
 		pipe_thread2.start();
+		startIddleCheck();
 	}
 
 	/**
@@ -164,15 +222,61 @@ class UDPRelayServer implements Runnable {
 
 	// Private methods
 	// ///////////////
-	private synchronized void abort() {
-		if (pipe_thread1 == null) {
+
+	/**
+	 * Aborts the association once no datagram has been received for
+	 * iddleTimeout, checked from the timer wheel.
+	 */
+	private void startIddleCheck() {
+		if (iddleTimeout != 0) {
+			expireIn(iddleTimeout);
+		}
+	}
+
+	private final Runnable iddleCheck = new Runnable() {
+		public void run() {
+			final long timeSinceRead = System.currentTimeMillis()
+					- lastReadTime;
+			if (timeSinceRead >= iddleTimeout) {
+				abort();
+			} else {
+				expireIn(iddleTimeout - timeSinceRead);
+			}
+		}
+	};
+
+	private synchronized void expireIn(final long timeout) {
+		if (!aborted) {
+			deadline = TimerWheel.shared().schedule(iddleCheck, timeout);
+		}
+	}
+
+	synchronized void abort() {
+		if (aborted) {
 			return;
 		}
+		aborted = true;
+		if (deadline != null) {
+			deadline.cancel();
+			deadline = null;
+		}
 
 		//log.info("Aborting UDP Relay Server");
 
-		remote_sock.close();
-		client_sock.close();
+		if (client_ch != null) {
+			try {
+				client_ch.close();
+				remote_ch.close();
+			} catch (final IOException ioe) {
+			}
+			// Channels registered with the loop are only released by a select
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		} else {
+			remote_sock.close();
+			client_sock.close();
+		}
 
 		if (controlConnection != null) {
 			try {
@@ -185,10 +289,10 @@ class UDPRelayServer implements Runnable {
 			master_thread.interrupt();
 		}
 
-		pipe_thread1.interrupt();
-		pipe_thread2.interrupt();
-
-		pipe_thread1 = null;
+		if (pipe_thread1 != null) {
+			pipe_thread1.interrupt();
+			pipe_thread2.interrupt();
+		}
 	}
 
 	private void pipe(DatagramSocket from, DatagramSocket to, boolean out)
@@ -210,18 +314,305 @@ class UDPRelayServer implements Runnable {
 			} catch (final InterruptedIOException iioe) {
 				// log("Interrupted: "+iioe);
 				// If we were interrupted by other thread.
-				if (iddleTimeout == 0) {
-					return;
+				return;
+			}
+			dp.setLength(data.length);
+		}
+	}
+
+	// Channel mode
+	// /////////////
+
+	/**
+	 * Relays datagrams from the client, stripping SOCKS5 header.
+	 */
+	private void relayOut(final Loop loop) throws IOException {
+		final ByteBuffer buf = loop.buf;
+		final DatagramPacket dp = loop.dp;
+
+		for (int i = 0; i < Loop.BATCH; ++i) {
+			buf.clear();
+			final SocketAddress from = client_ch.receive(buf);
+			if (from == null) {
+				return;
+			}
+			if (!from.equals(clientAddress)) {
+				continue; // Drop datagrams not from the client
+			}
+			lastReadTime = System.currentTimeMillis();
+			buf.flip();
+
+			final SocksCodec codec = loop.codec;
+			try {
+				if (!codec.decodeUdpHeader(buf) || (codec.frag != 0)) {
+					continue; // Fragments are not supported
+				}
+			} catch (final SocksException se) {
+				continue;
+			}
+			InetAddress ip;
+			if (codec.isHost()) {
+				final String host = codec.getHost();
+				ip = DnsCache.getCached(host);
+				if (ip == null) {
+					// Don't block the loop, sent once resolved.
+					loop.resolve(host, this, buf, codec.port);
+					continue;
+				}
+			} else {
+				ip = codec.getInetAddress();
+			}
+			forward(loop, buf, ip, codec.port);
+		}
+	}
+
+	/**
+	 * Sends the data remaining in the buffer to the remote host, if the
+	 * authenticator allows it.
+	 */
+	private void forward(final Loop loop, final ByteBuffer data,
+			final InetAddress ip, final int port) throws IOException {
+		final DatagramPacket dp = loop.dp;
+		final int offset = data.position();
+		dp.setData(data.array(), offset, data.limit() - offset);
+		dp.setAddress(ip);
+		dp.setPort(port);
+		if (auth.checkRequest(dp, true)) {
+			data.position(offset);
+			remote_ch.send(data, new InetSocketAddress(ip, port));
+		}
+	}
+
+	/**
+	 * Relays datagrams to the client, writing SOCKS5 header in front of the
+	 * data.
+	 */
+	private void relayIn(final Loop loop) throws IOException {
+		final ByteBuffer buf = loop.buf;
+		final DatagramPacket dp = loop.dp;
+
+		for (int i = 0; i < Loop.BATCH; ++i) {
+			buf.clear();
+			buf.position(Loop.HEADER_ROOM);
+			final InetSocketAddress from = (InetSocketAddress) remote_ch
+					.receive(buf);
+			if (from == null) {
+				return;
+			}
+			lastReadTime = System.currentTimeMillis();
+
+			final int length = buf.position() - Loop.HEADER_ROOM;
+			dp.setData(buf.array(), Loop.HEADER_ROOM, length);
+			dp.setAddress(from.getAddress());
+			dp.setPort(from.getPort());
+			if (!auth.checkRequest(dp, false)) {
+				continue;
+			}
+
+			buf.limit(Loop.HEADER_ROOM + length);
+			buf.position(Loop.HEADER_ROOM);
+			SocksCodec.prependUdpHeader(buf, from.getAddress().getAddress(),
+					from.getPort());
+			client_ch.send(buf, clientAddress);
+		}
+	}
+
+	/**
+	 * Event loop shared by all channel mode associations.
+	 */
+	static final class Loop implements Runnable {
+
+		static final int BATCH = 32;
+		// Datagrams kept per host while it resolves
+		static final int MAX_WAITING = 64;
+		// Room for the largest header: IPV6 address
+		static final int HEADER_ROOM = 4 + Socks5Message.SOCKS_IPV6_LENGTH + 2;
+
+		final Selector selector;
+		final ByteBuffer buf = ByteBuffer.allocate(HEADER_ROOM + datagramSize);
+		final DatagramPacket dp = new DatagramPacket(buf.array(), 0);
+		final SocksCodec codec = new SocksCodec();
+		final ConcurrentLinkedQueue<UDPRelayServer> added = new ConcurrentLinkedQueue<UDPRelayServer>();
+		// Datagrams waiting for their host to resolve, owned by the loop thread
+		final HashMap<String, ArrayList<Waiting>> resolving = new HashMap<String, ArrayList<Waiting>>();
+		final ConcurrentLinkedQueue<Runnable> resolved = new ConcurrentLinkedQueue<Runnable>();
+		final ExecutorService resolver = Executors.newSingleThreadExecutor();
+
+		Loop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(final UDPRelayServer relay) {
+			added.add(relay);
+			selector.wakeup();
+		}
+
+		/**
+		 * Keeps a copy of the datagram until the host is resolved off the
+		 * loop, then sends it.
+		 */
+		void resolve(final String host, final UDPRelayServer relay,
+				final ByteBuffer data, final int port) {
+			ArrayList<Waiting> waiting = resolving.get(host);
+			final boolean first = waiting == null;
+			if (first) {
+				waiting = new ArrayList<Waiting>();
+				resolving.put(host, waiting);
+			}
+			if (waiting.size() < MAX_WAITING) {
+				final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+				copy.put(data);
+				copy.flip();
+				waiting.add(new Waiting(relay, copy, port));
+			}
+			if (!first) {
+				return;
+			}
+			resolver.execute(new Runnable() {
+				public void run() {
+					InetAddress ip = null;
+					try {
+						ip = DnsCache.getByName(host);
+					} catch (final UnknownHostException uhe) {
+					}
+					final InetAddress address = ip;
+					resolved.add(new Runnable() {
+						public void run() {
+							onResolved(host, address);
+						}
+					});
+					selector.wakeup();
 				}
+			});
+		}
+
+		private void onResolved(final String host, final InetAddress ip) {
+			final ArrayList<Waiting> waiting = resolving.remove(host);
+			if ((waiting == null) || (ip == null)) {
+				return; // Unknown host, dropped like by the threaded relay
+			}
+			for (final Waiting w : waiting) {
+				try {
+					w.relay.forward(this, w.data, ip, w.port);
+				} catch (final IOException ioe) {
+					// Aborted meanwhile
+					w.relay.abort();
+				} catch (final RuntimeException re) {
+					ProxyServer.debug("UDP relay failed", re);
+					w.relay.abort();
+				}
+			}
+		}
+
+		public void run() {
+			try {
+				loop();
+			} finally {
+				exit();
+			}
+		}
 
-				// If last datagram was received, long time ago, return.
-				final long timeSinceRead = System.currentTimeMillis()
-						- lastReadTime;
-				if (timeSinceRead >= iddleTimeout - 100) {
+		private void loop() {
+			while (true) {
+				try {
+					selector.select();
+				} catch (final IOException ioe) {
+					ProxyServer.debug("UDP relay loop failed", ioe);
 					return;
 				}
+
+				Runnable task;
+				while ((task = resolved.poll()) != null) {
+					task.run();
+				}
+
+				UDPRelayServer relay;
+				while ((relay = added.poll()) != null) {
+					try {
+						relay.client_ch.configureBlocking(false);
+						relay.remote_ch.configureBlocking(false);
+						relay.client_ch.register(selector, SelectionKey.OP_READ,
+								relay);
+						relay.remote_ch.register(selector, SelectionKey.OP_READ,
+								relay);
+					} catch (final IOException ioe) {
+						relay.abort();
+					} catch (final RuntimeException re) {
+						// Channel closed by abort meanwhile
+						relay.abort();
+					}
+				}
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					relay = (UDPRelayServer) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							if (key.channel() == relay.client_ch) {
+								relay.relayOut(this);
+							} else {
+								relay.relayIn(this);
+							}
+						}
+					} catch (final IOException ioe) {
+						relay.abort();
+					} catch (final CancelledKeyException cke) {
+						// Closed by abort from another thread
+						relay.abort();
+					} catch (final RuntimeException re) {
+						ProxyServer.debug("UDP relay failed", re);
+						relay.abort();
+					}
+				}
 			}
-			dp.setLength(data.length);
+		}
+
+		/**
+		 * Makes the next association start a new loop, and aborts those
+		 * left on this one.
+		 */
+		private void exit() {
+			synchronized (UDPRelayServer.class) {
+				if (loop == this) {
+					loop = null;
+				}
+			}
+			UDPRelayServer relay;
+			while ((relay = added.poll()) != null) {
+				relay.abort();
+			}
+			try {
+				for (final SelectionKey key : selector.keys()) {
+					((UDPRelayServer) key.attachment()).abort();
+				}
+			} catch (final RuntimeException re) {
+				// Selector closed
+			}
+			try {
+				selector.close();
+			} catch (final IOException ioe) {
+			}
+			resolver.shutdown();
+		}
+	}
+
+	/**
+	 * Datagram waiting for its host to resolve.
+	 */
+	static final class Waiting {
+
+		final UDPRelayServer relay;
+		final ByteBuffer data;
+		final int port;
+
+		Waiting(final UDPRelayServer relay, final ByteBuffer data,
+				final int port) {
+			this.relay = relay;
+			this.data = data;
+			this.port = port;
 		}
 	}
 }
@@ -0,0 +1,179 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DnsCacheTest {
+
+	private static final InetAddress IP = ip(10, 0, 0, 1);
+
+	private final DnsCache.Resolver system = DnsCache.resolver;
+	private final int ttl = DnsCache.ttl;
+	private final int negativeTtl = DnsCache.negativeTtl;
+	private final int maxSize = DnsCache.maxSize;
+
+	private AtomicInteger lookups;
+
+	private static InetAddress ip(final int a, final int b, final int c,
+			final int d) {
+		try {
+			return InetAddress.getByAddress(new byte[] { (byte) a, (byte) b,
+					(byte) c, (byte) d });
+		} catch (final UnknownHostException uhe) {
+			throw new AssertionError(uhe);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		DnsCache.clear();
+		lookups = new AtomicInteger();
+		// Resolves names starting with "bad" to nothing, others to IP
+		DnsCache.resolver = new DnsCache.Resolver() {
+			public InetAddress resolve(final String host)
+					throws UnknownHostException {
+				lookups.incrementAndGet();
+				if (host.startsWith("bad")) {
+					throw new UnknownHostException(host);
+				}
+				return IP;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		DnsCache.resolver = system;
+		DnsCache.ttl = ttl;
+		DnsCache.negativeTtl = negativeTtl;
+		DnsCache.maxSize = maxSize;
+		DnsCache.clear();
+	}
+
+	private static void assertUnknown(final String host) {
+		try {
+			DnsCache.getByName(host);
+			fail(host + " resolved");
+		} catch (final UnknownHostException uhe) {
+			assertEquals(host, uhe.getMessage());
+		}
+	}
+
+	@Test
+	public void resolvedNameIsCachedForTtl() throws Exception {
+		DnsCache.setTtl(200);
+		assertNull(DnsCache.getCached("a"));
+		assertSame(IP, DnsCache.getByName("a"));
+		assertSame(IP, DnsCache.getByName("a"));
+		assertSame(IP, DnsCache.getCached("a"));
+		assertEquals(1, lookups.get());
+
+		Thread.sleep(300);
+		assertNull(DnsCache.getCached("a"));
+		assertSame(IP, DnsCache.getByName("a"));
+		assertEquals(2, lookups.get());
+	}
+
+	@Test
+	public void zeroTtlDisablesCaching() throws Exception {
+		DnsCache.setTtl(0);
+		DnsCache.getByName("a");
+		DnsCache.getByName("a");
+		assertNull(DnsCache.getCached("a"));
+		assertEquals(2, lookups.get());
+	}
+
+	@Test
+	public void failedNameIsCachedForNegativeTtl() throws Exception {
+		DnsCache.setNegativeTtl(200);
+		assertUnknown("bad");
+		assertUnknown("bad");
+		assertNull(DnsCache.getCached("bad"));
+		assertEquals(1, lookups.get());
+
+		Thread.sleep(300);
+		assertUnknown("bad");
+		assertEquals(2, lookups.get());
+	}
+
+	@Test
+	public void cacheIsBoundedByMaxSize() throws Exception {
+		DnsCache.setMaxSize(8);
+		for (int i = 0; i < 20; i++) {
+			DnsCache.getByName("host" + i);
+		}
+
+		int cached = 0;
+		for (int i = 0; i < 20; i++) {
+			if (DnsCache.getCached("host" + i) != null) {
+				cached++;
+			}
+		}
+		assertTrue(cached + " names cached", cached <= 8);
+	}
+
+	@Test
+	public void concurrentLookupsOfSameNameAreCoalesced() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		DnsCache.resolver = new DnsCache.Resolver() {
+			public InetAddress resolve(final String host)
+					throws UnknownHostException {
+				lookups.incrementAndGet();
+				started.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException ie) {
+					throw new UnknownHostException(host);
+				}
+				return IP;
+			}
+		};
+
+		final AtomicReference<InetAddress> first = new AtomicReference<InetAddress>();
+		final AtomicReference<InetAddress> second = new AtomicReference<InetAddress>();
+		final Thread t1 = lookup("slow", first);
+		t1.start();
+		started.await();
+
+		// Waits on the first caller's lookup instead of starting its own
+		final Thread t2 = lookup("slow", second);
+		t2.start();
+		while (t2.getState() != Thread.State.WAITING) {
+			assertTrue(t2.isAlive());
+			Thread.sleep(1);
+		}
+
+		release.countDown();
+		t1.join(5000);
+		t2.join(5000);
+		assertSame(IP, first.get());
+		assertSame(IP, second.get());
+		assertEquals(1, lookups.get());
+	}
+
+	private static Thread lookup(final String host,
+			final AtomicReference<InetAddress> result) {
+		return new Thread(new Runnable() {
+			public void run() {
+				try {
+					result.set(DnsCache.getByName(host));
+				} catch (final UnknownHostException uhe) {
+				}
+			}
+		});
+	}
+}
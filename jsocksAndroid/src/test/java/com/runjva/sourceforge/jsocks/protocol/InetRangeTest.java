@@ -0,0 +1,120 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InetRangeTest {
+
+	private static InetAddress ip(final String address) throws Exception {
+		return InetAddress.getByName(address);
+	}
+
+	@Test
+	public void emptyRangeContainsNothing() throws Exception {
+		final InetRange range = new InetRange();
+		assertFalse(range.contains("10.0.0.1", false));
+		assertFalse(range.contains(ip("10.0.0.1")));
+	}
+
+	@Test
+	public void partialAddressCoversItsSubnet() throws Exception {
+		final InetRange range = new InetRange();
+		range.add("192.168.");
+		assertTrue(range.contains("192.168.0.0", false));
+		assertTrue(range.contains("192.168.255.255", false));
+		assertFalse(range.contains("192.169.0.0", false));
+		assertFalse(range.contains("192.167.255.255", false));
+	}
+
+	@Test
+	public void addressesAndRangesAreLookedUp() throws Exception {
+		final InetRange range = new InetRange();
+		range.add(ip("10.0.0.5"));
+		range.add(ip("10.0.1.0"), ip("10.0.1.10"));
+		range.add("172.16.0.1:172.16.0.3");
+		assertTrue(range.contains(ip("10.0.0.5")));
+		assertFalse(range.contains(ip("10.0.0.4")));
+		assertTrue(range.contains(ip("10.0.1.0")));
+		assertTrue(range.contains(ip("10.0.1.10")));
+		assertFalse(range.contains(ip("10.0.1.11")));
+		assertTrue(range.contains("172.16.0.2", false));
+		assertFalse(range.contains("172.16.0.4", false));
+	}
+
+	@Test
+	public void overlappingAndAdjacentIntervalsAreMerged() throws Exception {
+		final InetRange range = new InetRange();
+		range.add(ip("10.0.0.20"), ip("10.0.0.30"));
+		range.add(ip("10.0.0.0"), ip("10.0.0.10"));
+		range.add(ip("10.0.0.5"), ip("10.0.0.19"));
+		range.add(ip("10.0.0.40"));
+		final InetRange.Index index = range.rebuild();
+		assertEquals(2, index.from.length);
+		assertEquals(InetRange.ip2long(ip("10.0.0.0")), index.from[0]);
+		assertEquals(InetRange.ip2long(ip("10.0.0.30")), index.to[0]);
+		assertEquals(InetRange.ip2long(ip("10.0.0.40")), index.from[1]);
+		assertTrue(range.contains(ip("10.0.0.15")));
+		assertFalse(range.contains(ip("10.0.0.35")));
+	}
+
+	@Test
+	public void endingsMatchWholeLabels() {
+		final InetRange range = new InetRange();
+		range.add(".example.com");
+		range.add(".onion");
+		assertTrue(range.contains("www.example.com", false));
+		assertTrue(range.contains("a.b.example.com", false));
+		assertTrue(range.contains("abcdef.onion", false));
+		assertFalse(range.contains("example.com", false));
+		assertFalse(range.contains("badexample.com", false));
+		assertFalse(range.contains("www.example.org", false));
+	}
+
+	@Test
+	public void removedEntriesAreNoLongerLookedUp() throws Exception {
+		final InetRange range = new InetRange();
+		range.add(".example.com");
+		range.add("10.0.0.");
+		assertTrue(range.contains("www.example.com", false));
+		assertTrue(range.remove(".example.com"));
+		assertFalse(range.contains("www.example.com", false));
+		assertTrue(range.contains("10.0.0.1", false));
+		assertFalse(range.remove(".example.com"));
+	}
+
+	@Test
+	public void indexIsRebuiltOnceAfterModifications() throws Exception {
+		final InetRange range = new InetRange();
+		final InetRange.Index empty = range.index;
+		for (int i = 0; i < 256; i++) {
+			range.add(ip("10.1." + i + ".0"), ip("10.1." + i + ".255"));
+		}
+		assertTrue(range.stale);
+		assertSame(empty, range.index);
+
+		assertTrue(range.contains("10.1.128.1", false));
+		assertFalse(range.stale);
+		final InetRange.Index built = range.index;
+		assertEquals(1, built.from.length);
+
+		assertFalse(range.contains("10.2.0.1", false));
+		assertSame(built, range.index);
+	}
+
+	@Test
+	public void cloneIsIndependent() throws Exception {
+		final InetRange range = new InetRange();
+		range.add("10.0.0.");
+		final InetRange copy = (InetRange) range.clone();
+		copy.add(".example.com");
+		assertTrue(copy.contains("10.0.0.1", false));
+		assertTrue(copy.contains("www.example.com", false));
+		assertFalse(range.contains("www.example.com", false));
+	}
+}
@@ -0,0 +1,280 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SocksCodecTest {
+
+	private interface Decoder {
+		boolean decode(SocksCodec codec, ByteBuffer in) throws SocksException;
+	}
+
+	private static final Decoder GREETING = new Decoder() {
+		public boolean decode(final SocksCodec codec, final ByteBuffer in)
+				throws SocksException {
+			return codec.decodeGreeting(in);
+		}
+	};
+
+	private static final Decoder REQUEST = new Decoder() {
+		public boolean decode(final SocksCodec codec, final ByteBuffer in)
+				throws SocksException {
+			return codec.decodeRequest(in);
+		}
+	};
+
+	private static final Decoder UDP_HEADER = new Decoder() {
+		public boolean decode(final SocksCodec codec, final ByteBuffer in)
+				throws SocksException {
+			return codec.decodeUdpHeader(in);
+		}
+	};
+
+	private static byte[] bytes(final int... values) {
+		final byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			b[i] = (byte) values[i];
+		}
+		return b;
+	}
+
+	private static byte[] concat(final byte[]... parts) {
+		int length = 0;
+		for (final byte[] part : parts) {
+			length += part.length;
+		}
+		final byte[] b = new byte[length];
+		int offset = 0;
+		for (final byte[] part : parts) {
+			System.arraycopy(part, 0, b, offset, part.length);
+			offset += part.length;
+		}
+		return b;
+	}
+
+	/**
+	 * Feeds the message one byte at a time, as it would arrive on a
+	 * non-blocking socket, and checks nothing is consumed before the last
+	 * byte. Two bytes of the next message follow it.
+	 */
+	private static SocksCodec decodeIncrementally(final Decoder decoder,
+			final byte[] message) throws SocksException {
+		final SocksCodec codec = new SocksCodec();
+		final ByteBuffer in = ByteBuffer.allocate(message.length + 2);
+		for (int i = 0; i < message.length; i++) {
+			in.flip();
+			assertFalse("complete after " + i + " bytes",
+					decoder.decode(codec, in));
+			assertEquals(0, in.position());
+			in.compact();
+			in.put(message[i]);
+		}
+		in.put((byte) 0x55).put((byte) 0x66);
+		in.flip();
+		assertTrue(decoder.decode(codec, in));
+		assertEquals(message.length, in.position());
+		assertEquals(2, in.remaining());
+		return codec;
+	}
+
+	@Test
+	public void socks5Greeting() throws Exception {
+		final SocksCodec codec = decodeIncrementally(GREETING,
+				bytes(5, 2, 0, 2));
+		assertEquals(5, codec.version);
+		assertEquals(2, codec.methodCount);
+		assertTrue(codec.hasMethod(0));
+		assertTrue(codec.hasMethod(2));
+		assertFalse(codec.hasMethod(1));
+	}
+
+	@Test
+	public void socks4ClientSendsNoGreeting() throws Exception {
+		final SocksCodec codec = new SocksCodec();
+		final ByteBuffer in = ByteBuffer.wrap(bytes(4, 1, 0, 80));
+		assertTrue(codec.decodeGreeting(in));
+		assertEquals(4, codec.version);
+		assertEquals(0, codec.methodCount);
+		assertEquals(0, in.position());
+	}
+
+	@Test
+	public void greetingWithoutMethodsIsRejected() {
+		try {
+			new SocksCodec().decodeGreeting(ByteBuffer.wrap(bytes(5, 0)));
+			fail();
+		} catch (final SocksException e) {
+			assertEquals(SocksProxyBase.SOCKS_FAILURE, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void unknownVersionIsRejected() {
+		try {
+			new SocksCodec().decodeRequest(ByteBuffer.wrap(bytes(6, 1)));
+			fail();
+		} catch (final SocksException e) {
+			assertEquals(SocksProxyBase.SOCKS_FAILURE, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void socks4Request() throws Exception {
+		final SocksCodec codec = decodeIncrementally(REQUEST,
+				concat(bytes(4, 1, 0x1F, 0x90, 10, 0, 0, 1), "bob".getBytes(),
+						bytes(0)));
+		assertEquals(4, codec.version);
+		assertEquals(SocksProxyBase.SOCKS_CMD_CONNECT, codec.command);
+		assertEquals(8080, codec.port);
+		assertFalse(codec.isHost());
+		assertEquals(InetAddress.getByName("10.0.0.1"), codec.getInetAddress());
+		assertEquals("bob", new String(codec.user, 0, codec.userLength));
+	}
+
+	@Test
+	public void socks4aRequest() throws Exception {
+		final SocksCodec codec = decodeIncrementally(REQUEST,
+				concat(bytes(4, 1, 0, 80, 0, 0, 0, 1, 0), "example.com"
+						.getBytes(), bytes(0)));
+		assertTrue(codec.isHost());
+		assertNull(codec.getInetAddress());
+		assertEquals("example.com", codec.getHost());
+		assertEquals(0, codec.userLength);
+		assertEquals(80, codec.port);
+	}
+
+	@Test
+	public void socks4UserTooLongIsRejected() {
+		final ByteBuffer in = ByteBuffer.allocate(8 + SocksCodec.MAX_USER_LENGTH
+				+ 2);
+		in.put(bytes(4, 1, 0, 80, 10, 0, 0, 1));
+		while (in.hasRemaining()) {
+			in.put((byte) 'a');
+		}
+		in.flip();
+		try {
+			new SocksCodec().decodeRequest(in);
+			fail();
+		} catch (final SocksException e) {
+			assertEquals(SocksProxyBase.SOCKS_FAILURE, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void socks5Ipv4Request() throws Exception {
+		final SocksCodec codec = decodeIncrementally(REQUEST,
+				bytes(5, 1, 0, 1, 127, 0, 0, 1, 0x01, 0xBB));
+		assertEquals(5, codec.version);
+		assertEquals(SocksProxyBase.SOCKS_CMD_CONNECT, codec.command);
+		assertEquals(Socks5Message.SOCKS_ATYP_IPV4, codec.addrType);
+		assertEquals(443, codec.port);
+		assertEquals("127.0.0.1", codec.getHost());
+	}
+
+	@Test
+	public void socks5DomainRequest() throws Exception {
+		final SocksCodec codec = decodeIncrementally(REQUEST,
+				concat(bytes(5, 1, 0, 3, 11), "example.org".getBytes(),
+						bytes(0, 80)));
+		assertTrue(codec.isHost());
+		assertEquals("example.org", codec.getHost());
+		assertEquals(80, codec.port);
+	}
+
+	@Test
+	public void socks5Ipv6Request() throws Exception {
+		final byte[] ip = InetAddress.getByName("2001:db8::1").getAddress();
+		final SocksCodec codec = decodeIncrementally(REQUEST,
+				concat(bytes(5, 3, 0, 4), ip, bytes(0x13, 0x88)));
+		assertEquals(SocksProxyBase.SOCKS_CMD_UDP_ASSOCIATE, codec.command);
+		assertEquals(Socks5Message.SOCKS_ATYP_IPV6, codec.addrType);
+		assertEquals(InetAddress.getByAddress(ip), codec.getInetAddress());
+		assertEquals(5000, codec.port);
+	}
+
+	@Test
+	public void unknownAddressTypeIsRejected() {
+		try {
+			new SocksCodec().decodeRequest(ByteBuffer.wrap(bytes(5, 1, 0, 2,
+					0, 0)));
+			fail();
+		} catch (final SocksException e) {
+			assertEquals(SocksProxyBase.SOCKS_JUST_ERROR, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void udpHeader() throws Exception {
+		final SocksCodec codec = decodeIncrementally(UDP_HEADER,
+				bytes(0, 0, 0, 1, 8, 8, 8, 8, 0, 53));
+		assertEquals(0, codec.frag);
+		assertEquals("8.8.8.8", codec.getHost());
+		assertEquals(53, codec.port);
+	}
+
+	@Test
+	public void socks5RequestRoundTrip() throws Exception {
+		final SocksCodec codec = new SocksCodec();
+		codec.version = 5;
+		codec.command = SocksProxyBase.SOCKS_CMD_CONNECT;
+		codec.setHost("torproject.org");
+		codec.port = 9050;
+		final ByteBuffer buf = ByteBuffer.allocate(64);
+		codec.encodeRequest(buf);
+		buf.flip();
+
+		final SocksCodec decoded = new SocksCodec();
+		assertTrue(decoded.decodeRequest(buf));
+		assertFalse(buf.hasRemaining());
+		assertEquals("torproject.org", decoded.getHost());
+		assertEquals(9050, decoded.port);
+		assertEquals(SocksProxyBase.SOCKS_CMD_CONNECT, decoded.command);
+	}
+
+	@Test
+	public void socks4aRequestRoundTrip() throws Exception {
+		final SocksCodec codec = new SocksCodec();
+		codec.version = 4;
+		codec.command = SocksProxyBase.SOCKS_CMD_CONNECT;
+		codec.setHost("example.com");
+		codec.port = 80;
+		final ByteBuffer buf = ByteBuffer.allocate(64);
+		codec.encodeRequest(buf);
+		buf.flip();
+
+		final SocksCodec decoded = new SocksCodec();
+		assertTrue(decoded.decodeRequest(buf));
+		assertFalse(buf.hasRemaining());
+		assertEquals("example.com", decoded.getHost());
+		assertEquals(80, decoded.port);
+	}
+
+	@Test
+	public void prependedUdpHeaderDecodes() throws Exception {
+		final byte[] ip = InetAddress.getByName("10.1.2.3").getAddress();
+		final ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.position(32);
+		buf.put(bytes(1, 2, 3));
+		buf.flip();
+		buf.position(32);
+		assertEquals(10, SocksCodec.prependUdpHeader(buf, ip, 1234));
+		assertEquals(22, buf.position());
+
+		final SocksCodec codec = new SocksCodec();
+		assertTrue(codec.decodeUdpHeader(buf));
+		assertEquals("10.1.2.3", codec.getHost());
+		assertEquals(1234, codec.port);
+		final byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		assertArrayEquals(bytes(1, 2, 3), data);
+	}
+}
@@ -0,0 +1,137 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+	// Driven by hand, only shared() starts a thread
+	private TimerWheel wheel;
+	private AtomicInteger runs;
+	private Runnable task;
+
+	@Before
+	public void setUp() {
+		wheel = new TimerWheel();
+		runs = new AtomicInteger();
+		task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+	}
+
+	/**
+	 * Same steps as the wheel thread after each tick.
+	 */
+	private void advance(final long ticks) {
+		for (long i = 0; i < ticks; i++) {
+			wheel.tick++;
+			wheel.transferAdded();
+			wheel.expire();
+		}
+	}
+
+	private TimerWheel.Timeout scheduleAt(final long ticks, final long extra) {
+		return wheel.scheduleAt(task, wheel.start + ticks * TimerWheel.TICK
+				+ extra);
+	}
+
+	@Test
+	public void deadlineIsRoundedUpToNextTick() {
+		scheduleAt(0, 1);
+		advance(1);
+		assertEquals(1, runs.get());
+
+		scheduleAt(2, 1);
+		advance(1);
+		assertEquals(1, runs.get());
+		advance(1);
+		assertEquals(2, runs.get());
+	}
+
+	@Test
+	public void deadlineOnTickRunsAtThatTick() {
+		scheduleAt(3, 0);
+		advance(2);
+		assertEquals(0, runs.get());
+		advance(1);
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void passedDeadlineRunsAtNextTick() {
+		advance(10);
+		scheduleAt(2, 0);
+		advance(1);
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void deadlineBeyondWheelWaitsForItsRound() {
+		// Lands in slot 3, first visited while a round is left
+		scheduleAt(TimerWheel.SLOTS + 3, 0);
+		advance(3);
+		assertEquals(0, runs.get());
+		advance(TimerWheel.SLOTS - 1);
+		assertEquals(0, runs.get());
+		advance(1);
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void deadlineInCurrentSlotOneRoundAheadWaitsForIt() {
+		advance(1);
+		scheduleAt(1 + TimerWheel.SLOTS, 0);
+		// Transferred into the slot expired by the same tick
+		advance(TimerWheel.SLOTS - 1);
+		assertEquals(0, runs.get());
+		advance(1);
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void severalRoundsAreCounted() {
+		scheduleAt(3 * TimerWheel.SLOTS + 5, 0);
+		advance(3 * TimerWheel.SLOTS + 4);
+		assertEquals(0, runs.get());
+		advance(1);
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void cancelledTimeoutDoesNotRun() {
+		final TimerWheel.Timeout before = scheduleAt(2, 0);
+		assertTrue(before.cancel());
+		final TimerWheel.Timeout placed = scheduleAt(4, 0);
+		advance(1);
+		assertTrue(placed.cancel());
+		advance(10);
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	public void expiredTimeoutCannotBeCancelled() {
+		final TimerWheel.Timeout timeout = scheduleAt(1, 0);
+		advance(1);
+		assertEquals(1, runs.get());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void timeoutsSharingSlotRunAtTheirRound() {
+		scheduleAt(7, 0);
+		scheduleAt(7 + TimerWheel.SLOTS, 0);
+		scheduleAt(7, 0);
+		advance(7);
+		assertEquals(2, runs.get());
+		advance(TimerWheel.SLOTS);
+		assertEquals(3, runs.get());
+	}
+}
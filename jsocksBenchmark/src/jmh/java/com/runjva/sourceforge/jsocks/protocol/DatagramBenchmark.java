@@ -0,0 +1,59 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Socks5DatagramSocket through the UDP relay of a loopback ProxyServer to an
+ * echo server: header encapsulation on send, decapsulation on receive, and
+ * the relay in between.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatagramBenchmark {
+
+	@Param({ "64", "1200" })
+	public int payload;
+
+	private Loopback loopback;
+	private Socks5DatagramSocket socket;
+	private DatagramPacket out;
+	private DatagramPacket in;
+
+	@Setup
+	public void setup() throws Exception {
+		loopback = new Loopback();
+		socket = new Socks5DatagramSocket(loopback.socks5Proxy(), 0, null);
+		socket.setSoTimeout(1000);
+		out = new DatagramPacket(new byte[payload], payload,
+				Loopback.LOCALHOST, loopback.udpEchoPort());
+		// Room for the header the relay puts in front
+		in = new DatagramPacket(new byte[payload + 64], payload + 64);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		socket.close();
+		loopback.close();
+	}
+
+	@Benchmark
+	public int roundTrip() throws IOException {
+		socket.send(out);
+		in.setLength(in.getData().length);
+		socket.receive(in);
+		return in.getLength();
+	}
+}
@@ -0,0 +1,80 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Lookups in an InetRange shaped like a direct hosts list: single addresses,
+ * subnets given as prefixes, address ranges and domain endings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InetRangeBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int size;
+
+	private static final int PROBES = 1024;
+
+	private InetRange range;
+	private final InetAddress[] ips = new InetAddress[PROBES];
+	private final String[] hosts = new String[PROBES];
+	private int next;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		final Random random = new Random(42);
+		range = new InetRange();
+		for (int i = 0; i < size; ++i) {
+			switch (i % 4) {
+			case 0:
+				range.add(randomIp(random));
+				break;
+			case 1:
+				range.add((random.nextInt(223) + 1) + "."
+						+ random.nextInt(256) + ".");
+				break;
+			case 2:
+				final String from = randomIp(random);
+				range.add(from + ":" + from.substring(0, from.lastIndexOf('.'))
+						+ ".255");
+				break;
+			default:
+				range.add(".host" + i + ".example.net");
+			}
+		}
+		// Most probes miss, as most traffic goes through the proxy
+		for (int i = 0; i < PROBES; ++i) {
+			ips[i] = InetAddress.getByName(randomIp(random));
+			hosts[i] = "www.host" + random.nextInt(size * 2) + ".example.net";
+		}
+	}
+
+	@Benchmark
+	public boolean containsIp() {
+		return range.contains(ips[next++ & (PROBES - 1)]);
+	}
+
+	@Benchmark
+	public boolean containsHost() {
+		// Without resolving, as for a host the proxy should reach directly
+		return range.contains(hosts[next++ & (PROBES - 1)], false);
+	}
+
+	private static String randomIp(final Random random) {
+		return (random.nextInt(223) + 1) + "." + random.nextInt(256) + "."
+				+ random.nextInt(256) + "." + random.nextInt(256);
+	}
+}
@@ -0,0 +1,148 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Echo servers and a proxy server on the loopback interface, shared by the
+ * benchmarks which need the network.
+ */
+class Loopback {
+
+	static final InetAddress LOCALHOST = InetAddress.getLoopbackAddress();
+
+	final ServerSocket echo;
+	final DatagramSocket udpEcho;
+	final ProxyServer proxy;
+	final int proxyPort;
+
+	/**
+	 * Starts the echo servers and a proxy server configured by the static
+	 * ProxyServer setters.
+	 */
+	Loopback() throws IOException, InterruptedException {
+		echo = new ServerSocket(0, 50, LOCALHOST);
+		udpEcho = new DatagramSocket(0, LOCALHOST);
+		daemon(new Runnable() {
+			public void run() {
+				acceptEcho();
+			}
+		});
+		daemon(new Runnable() {
+			public void run() {
+				udpEcho();
+			}
+		});
+
+		proxyPort = freePort();
+		proxy = new ProxyServer(new ServerAuthenticatorNone(null, null));
+		daemon(new Runnable() {
+			public void run() {
+				proxy.start(proxyPort, 50, LOCALHOST);
+			}
+		});
+		awaitListening(proxyPort);
+	}
+
+	int echoPort() {
+		return echo.getLocalPort();
+	}
+
+	int udpEchoPort() {
+		return udpEcho.getLocalPort();
+	}
+
+	Socks5Proxy socks5Proxy() {
+		return new Socks5Proxy(LOCALHOST, proxyPort);
+	}
+
+	void close() throws IOException {
+		proxy.stop();
+		echo.close();
+		udpEcho.close();
+	}
+
+	// Private methods
+	// ////////////////
+
+	private void acceptEcho() {
+		try {
+			while (true) {
+				final Socket s = echo.accept();
+				s.setTcpNoDelay(true);
+				daemon(new Runnable() {
+					public void run() {
+						echo(s);
+					}
+				});
+			}
+		} catch (final IOException ioe) {
+			// Closed
+		}
+	}
+
+	private static void echo(final Socket s) {
+		final byte[] buf = new byte[8192];
+		try {
+			final InputStream in = s.getInputStream();
+			final OutputStream out = s.getOutputStream();
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+		} catch (final IOException ioe) {
+		} finally {
+			try {
+				s.close();
+			} catch (final IOException ioe) {
+			}
+		}
+	}
+
+	private void udpEcho() {
+		final DatagramPacket dp = new DatagramPacket(new byte[65535], 65535);
+		try {
+			while (true) {
+				dp.setLength(65535);
+				udpEcho.receive(dp);
+				udpEcho.send(dp);
+			}
+		} catch (final IOException ioe) {
+			// Closed
+		}
+	}
+
+	private static int freePort() throws IOException {
+		final ServerSocket s = new ServerSocket(0, 1, LOCALHOST);
+		final int port = s.getLocalPort();
+		s.close();
+		return port;
+	}
+
+	private static void awaitListening(final int port)
+			throws InterruptedException {
+		for (int i = 0; i < 100; ++i) {
+			try {
+				new Socket(LOCALHOST, port).close();
+				return;
+			} catch (final IOException ioe) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IllegalStateException("Proxy server did not start");
+	}
+
+	private static void daemon(final Runnable r) {
+		final Thread t = new Thread(r);
+		t.setDaemon(true);
+		t.start();
+	}
+}
@@ -0,0 +1,123 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing and encoding of SOCKS requests, with the stream based messages and
+ * with the ByteBuffer codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageBenchmark {
+
+	@Param({ "ipv4", "ipv6", "domain" })
+	public String addressType;
+
+	private byte[] socks5Request;
+	private byte[] socks4Request;
+	private Socks5Message socks5Message;
+	private Socks4Message socks4Message;
+
+	private final SocksCodec codec = new SocksCodec();
+	private ByteBuffer in;
+	private ByteBuffer in4;
+	private final ByteBuffer out = ByteBuffer.allocate(600);
+	private final ByteArrayOutputStream stream = new ByteArrayOutputStream(600);
+
+	@Setup
+	public void setup() throws IOException {
+		if ("domain".equals(addressType)) {
+			socks5Message = new Socks5Message(SocksProxyBase.SOCKS_CMD_CONNECT,
+					"check.torproject.org", 443);
+		} else {
+			final String literal = "ipv4".equals(addressType) ? "93.184.216.34"
+					: "2606:2800:220:1:248:1893:25c8:1946";
+			// Named after itself, so that no reverse lookup is measured
+			final InetAddress ip = InetAddress.getByAddress(literal,
+					InetAddress.getByName(literal).getAddress());
+			socks5Message = new Socks5Message(SocksProxyBase.SOCKS_CMD_CONNECT,
+					ip, 443);
+		}
+		socks5Request = toBytes(socks5Message);
+
+		socks4Message = new Socks4Message(SocksProxyBase.SOCKS_CMD_CONNECT,
+				InetAddress.getByAddress("93.184.216.34", new byte[] { 93,
+						(byte) 184, (byte) 216, 34 }), 443, "user");
+		socks4Request = toBytes(socks4Message);
+
+		codec.decodeRequest(ByteBuffer.wrap(socks5Request));
+		in = ByteBuffer.wrap(socks5Request);
+		in4 = ByteBuffer.wrap(socks4Request);
+	}
+
+	@Benchmark
+	public Object parseSocks5Stream() throws IOException {
+		return new Socks5Message(new ByteArrayInputStream(socks5Request), false);
+	}
+
+	@Benchmark
+	public int parseSocks5Codec() throws IOException {
+		in.clear();
+		codec.decodeRequest(in);
+		return codec.port;
+	}
+
+	@Benchmark
+	public Object parseSocks4Stream() throws IOException {
+		return new Socks4Message(new ByteArrayInputStream(socks4Request), false);
+	}
+
+	@Benchmark
+	public int parseSocks4Codec() throws IOException {
+		in4.clear();
+		codec.decodeRequest(in4);
+		return codec.port;
+	}
+
+	@Benchmark
+	public int encodeSocks5Stream() throws IOException {
+		stream.reset();
+		final Socks5Message msg = socks5Message.ip == null ? new Socks5Message(
+				socks5Message.command, socks5Message.host, socks5Message.port)
+				: new Socks5Message(socks5Message.command, socks5Message.ip,
+						socks5Message.port);
+		msg.write(stream);
+		return stream.size();
+	}
+
+	@Benchmark
+	public int encodeSocks5Codec() {
+		out.clear();
+		codec.encodeRequest(out);
+		return out.position();
+	}
+
+	@Benchmark
+	public int encodeSocks4Stream() throws IOException {
+		stream.reset();
+		new Socks4Message(socks4Message.command, socks4Message.ip,
+				socks4Message.port, socks4Message.user).write(stream);
+		return stream.size();
+	}
+
+	private static byte[] toBytes(final ProxyMessage msg) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		msg.write(bytes);
+		return bytes.toByteArray();
+	}
+}
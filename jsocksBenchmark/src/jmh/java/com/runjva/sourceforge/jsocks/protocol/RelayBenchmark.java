@@ -0,0 +1,102 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * ProxyServer over loopback, relaying to an echo server: the cost of a SOCKS5
+ * handshake, and throughput of an established connection. Relay selects the
+ * engine, a thread pair per connection copying streams, the same with channel
+ * relay, or the reactor.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RelayBenchmark {
+
+	@Param({ "stream", "channel", "reactor" })
+	public String relay;
+
+	@Param({ "16384" })
+	public int chunk;
+
+	private Loopback loopback;
+	private Socks5Proxy proxy;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		ProxyServer.setChannelRelay("channel".equals(relay));
+		ProxyServer.setReactorThreads("reactor".equals(relay) ? 2 : 0);
+		loopback = new Loopback();
+		proxy = loopback.socks5Proxy();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		loopback.close();
+		ProxyServer.setChannelRelay(false);
+		ProxyServer.setReactorThreads(0);
+	}
+
+	/**
+	 * Connection of a single client, reused by all iterations.
+	 */
+	@State(Scope.Thread)
+	public static class Connection {
+		Socket socket;
+		InputStream in;
+		OutputStream out;
+		byte[] buf;
+
+		@Setup(Level.Trial)
+		public void open(final RelayBenchmark b) throws IOException {
+			socket = new SocksSocket(b.proxy, Loopback.LOCALHOST,
+					b.loopback.echoPort());
+			socket.setTcpNoDelay(true);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			buf = new byte[b.chunk];
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	public void handshake() throws IOException {
+		final Socket s = new SocksSocket(proxy, Loopback.LOCALHOST,
+				loopback.echoPort());
+		s.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	public int roundTrip(final Connection c) throws IOException {
+		c.out.write(c.buf);
+		int read = 0;
+		while (read < c.buf.length) {
+			final int len = c.in.read(c.buf, read, c.buf.length - read);
+			if (len < 0) {
+				throw new IOException("Relay closed");
+			}
+			read += len;
+		}
+		return read;
+	}
+}
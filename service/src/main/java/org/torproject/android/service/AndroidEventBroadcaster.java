@@ -3,20 +3,64 @@ package org.torproject.android.service;
 import android.content.Context;
 import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.TextUtils;
 import com.msopentech.thali.toronionproxy.BaseEventBroadcaster;
 import com.msopentech.thali.toronionproxy.TorSettings;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.torproject.android.service.TorServiceConstants.*;
 
+/**
+ * Broadcasts the state of Tor within the app.
+ * <p>
+ * Log lines are kept in a bounded ring and delivered in batches: the first line after a delivery
+ * schedules the next one {@link #LOG_BATCH_INTERVAL} milliseconds later, which sends every line
+ * logged meanwhile in a single intent.
+ */
 public final class AndroidEventBroadcaster extends BaseEventBroadcaster {
 
+    private static final int LOG_CAPACITY = 512;
+    private static final long LOG_BATCH_INTERVAL = 250;
+
     private final LocalBroadcastManager mBroadcaster;
     private final Context mContext;
 
+    private final ServiceClients mClients = new ServiceClients();
+    private final StatsPage mStatsPage;
+    private final LogBuffer mLog = new LogBuffer(LOG_CAPACITY);
+    private final AtomicBoolean mLogScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService mLogDelivery = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LogDelivery");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    // only touched on the delivery thread
+    private long mLogDelivered;
+
+    private final Runnable mDeliverLog = new Runnable() {
+        public void run() {
+            mLogScheduled.set(false);
+            deliverLog();
+        }
+    };
+
     public AndroidEventBroadcaster(Context context, TorSettings settings) {
         super(settings);
         mContext = context;
         mBroadcaster = LocalBroadcastManager.getInstance(context);;
+        mStatsPage = new StatsPage(new File(context.getFilesDir(), "stats_page"));
     }
 
     @Override
@@ -25,22 +69,86 @@ public final class AndroidEventBroadcaster extends BaseEventBroadcaster {
         intent.putExtra("up", upload).putExtra("down", download).putExtra("written", written)
                 .putExtra("read", read).putExtra(EXTRA_STATUS, mStatus.getStatus());
         mBroadcaster.sendBroadcast(intent);
+        mStatsPage.setBandwidth(download, upload, read, written);
+        mClients.onBandwidth(upload, download, written, read);
     }
 
     @Override
     public void broadcastLogMessage(String logMessage) {
+        mLog.add(logMessage);
+        if (mLogScheduled.compareAndSet(false, true)) {
+            try {
+                mLogDelivery.schedule(mDeliverLog, LOG_BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // already shut down
+            }
+        }
+    }
+
+    /**
+     * @return true if debug lines are logged, so callers can skip formatting them otherwise
+     */
+    public boolean isDebugEnabled() {
+        return mSettings.hasDebugLogs();
+    }
+
+    /**
+     * @return the lines still in the log ring, oldest first
+     */
+    public List<String> getLogSnapshot() {
+        List<String> lines = new ArrayList<>(LOG_CAPACITY);
+        mLog.copyTo(0, lines);
+        return lines;
+    }
+
+    /**
+     * @return the callbacks of bound clients, which get the same events as the broadcasts
+     */
+    ServiceClients getClients() {
+        return mClients;
+    }
+
+    /**
+     * @return the page of counters clients can map, also updated with the broadcasts
+     */
+    StatsPage getStatsPage() {
+        return mStatsPage;
+    }
+
+    /**
+     * Delivers the pending log lines and stops delivery.
+     */
+    public void shutdown() {
+        mLogDelivery.execute(mDeliverLog);
+        mLogDelivery.shutdown();
+        mClients.shutdown();
+    }
+
+    private void deliverLog() {
+        ArrayList<String> lines = new ArrayList<>();
+        long from = mLogDelivered;
+        mLogDelivered = mLog.copyTo(from, lines);
+        long dropped = mLogDelivered - from - lines.size();
+        if (dropped > 0)
+            lines.add(0, "(" + dropped + " log lines dropped)");
+        if (lines.isEmpty())
+            return;
         Intent intent = new Intent(LOCAL_ACTION_LOG);
-        intent.putExtra(LOCAL_EXTRA_LOG, logMessage);
+        intent.putExtra(LOCAL_EXTRA_LOG, TextUtils.join("\n", lines));
+        intent.putStringArrayListExtra(LOCAL_EXTRA_LOG_LINES, lines);
         intent.putExtra(EXTRA_STATUS, mStatus.getStatus());
         mBroadcaster.sendBroadcast(intent);
+        mClients.onLog(lines);
     }
 
     @Override
     public void broadcastStatus() {
         Intent intent = getActionStatusIntent();
-        System.out.println("Sending status: " + mStatus.getStatus());
         mBroadcaster.sendBroadcast(intent);
+        // Other apps only get the global one
         mContext.sendBroadcast(intent);
+        mStatsPage.setStatus(mStatus.getStatus());
+        mClients.onStatus(mStatus.getStatus());
     }
 
     private Intent getActionStatusIntent() {
@@ -0,0 +1,159 @@
+package org.torproject.android.service;
+
+import org.torproject.android.service.util.Prefs;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates the per second bandwidth events of Tor and publishes them to the notification and to
+ * the bandwidth broadcast at the cadence set in {@link Prefs#getBandwidthUpdateInterval()}.
+ * Recording an event only touches atomic counters. The notification is only rebuilt when its text
+ * changes, and nothing is broadcast while the counters don't move.
+ */
+final class BandwidthAggregator {
+
+    private final TorService mService;
+    private final AndroidEventBroadcaster mBroadcaster;
+    private final NumberFormat mNumberFormat;
+
+    private final AtomicLong mWindowRead = new AtomicLong();
+    private final AtomicLong mWindowWritten = new AtomicLong();
+    private final AtomicLong mWindowEvents = new AtomicLong();
+    private final AtomicLong mTotalRead = new AtomicLong();
+    private final AtomicLong mTotalWritten = new AtomicLong();
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BandwidthAggregator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private volatile ScheduledFuture<?> mPublisher;
+
+    // only touched on the scheduler thread
+    private long mLastRead = -1;
+    private long mLastWritten = -1;
+    private long mLastTotalRead = -1;
+    private long mLastTotalWritten = -1;
+    private String mLastText;
+
+    BandwidthAggregator(TorService service, AndroidEventBroadcaster broadcaster) {
+        mService = service;
+        mBroadcaster = broadcaster;
+        mNumberFormat = NumberFormat.getInstance(Locale.getDefault()); //localized numbers!
+    }
+
+    /**
+     * Adds one bandwidth event, in bytes over the last second.
+     */
+    void record(long read, long written) {
+        mWindowRead.addAndGet(read);
+        mWindowWritten.addAndGet(written);
+        mWindowEvents.incrementAndGet();
+        mTotalRead.addAndGet(read);
+        mTotalWritten.addAndGet(written);
+        if (mPublisher == null) {
+            start();
+        }
+    }
+
+    long getTotalRead() {
+        return mTotalRead.get();
+    }
+
+    long getTotalWritten() {
+        return mTotalWritten.get();
+    }
+
+    private synchronized void start() {
+        if (mPublisher != null || mScheduler.isShutdown()) {
+            return;
+        }
+        long interval = Prefs.getBandwidthUpdateInterval();
+        mPublisher = mScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                publish();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing until the next event, and forgets what was last published since the
+     * notification goes away with Tor. The interval is read again on restart.
+     */
+    synchronized void stop() {
+        if (mPublisher == null) {
+            return;
+        }
+        mPublisher.cancel(false);
+        mPublisher = null;
+        try {
+            mScheduler.execute(new Runnable() {
+                public void run() {
+                    mLastText = null;
+                    mLastRead = mLastWritten = mLastTotalRead = mLastTotalWritten = -1;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // already shut down
+        }
+    }
+
+    void shutdown() {
+        stop();
+        mScheduler.shutdown();
+    }
+
+    private void publish() {
+        long events = mWindowEvents.getAndSet(0);
+        if (events == 0) {
+            return;
+        }
+        // rates are averaged over the window, so nothing is lost when the cadence is over 1s
+        long read = mWindowRead.getAndSet(0) / events;
+        long written = mWindowWritten.getAndSet(0) / events;
+        long totalRead = mTotalRead.get();
+        long totalWritten = mTotalWritten.get();
+
+        String text = formatCount(read) + " \u2193" + " / " + formatCount(written) + " \u2191";
+        if (!text.equals(mLastText)) {
+            int iconId = R.drawable.ic_stat_tor;
+
+            if (read > 0 || written > 0)
+                iconId = R.drawable.ic_stat_tor_xfer;
+
+            mService.notify(text, mService.getNotifyId(), iconId);
+            mLastText = text;
+        }
+
+        if (read != mLastRead || written != mLastWritten || totalRead != mLastTotalRead
+                || totalWritten != mLastTotalWritten) {
+            mBroadcaster.broadcastBandwidth(written, read, totalWritten, totalRead);
+            mLastRead = read;
+            mLastWritten = written;
+            mLastTotalRead = totalRead;
+            mLastTotalWritten = totalWritten;
+        }
+    }
+
+    private String formatCount(long count) {
+        // Under 2Mb, returns "xxx.xKb"
+        // Over 2Mb, returns "xxx.xxMb"
+        if (count < 1e6)
+            return mNumberFormat.format(Math.round((float) ((int) (count * 10 / 1024)) / 10))
+                    + "kbps";
+        else
+            return mNumberFormat.format(Math.round((float) ((int) (count * 100 / 1024 / 1024)
+            ) / 100)) + "mbps";
+    }
+}
@@ -0,0 +1,92 @@
+package org.torproject.android.service;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the stages of bringing Tor up, independent stages concurrently, and records how long each
+ * stage took so slow starts can be traced to a stage.
+ */
+final class BootPipeline {
+
+    static final String STAGE_ASSETS = "assets";
+    static final String STAGE_TORRC = "torrc";
+    static final String STAGE_BRIDGES = "bridges";
+    static final String STAGE_HIDDEN_SERVICES = "hidden services";
+    static final String STAGE_LAUNCH = "launch";
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(3);
+    private final Map<String, Long> mTimings = new LinkedHashMap<>();
+
+    /**
+     * Runs the stage on the pipeline's threads.
+     */
+    <T> Future<T> submit(final String stage, final Callable<T> task) {
+        return mExecutor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                return run(stage, task);
+            }
+        });
+    }
+
+    /**
+     * Runs the stage on the calling thread.
+     */
+    <T> T run(String stage, Callable<T> task) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            return task.call();
+        } finally {
+            record(stage, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * Waits for the stage, rethrowing what it failed with.
+     */
+    static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    synchronized void record(String stage, long millis) {
+        mTimings.put(stage, millis);
+    }
+
+    /**
+     * @return duration in milliseconds of the last run of each stage, in order of first run
+     */
+    synchronized Map<String, Long> getTimings() {
+        return new LinkedHashMap<>(mTimings);
+    }
+
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> timing : mTimings.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(timing.getKey()).append('=').append(timing.getValue()).append("ms");
+        }
+        return sb.toString();
+    }
+}
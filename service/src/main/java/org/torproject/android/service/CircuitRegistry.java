@@ -0,0 +1,235 @@
+package org.torproject.android.service;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Circuits reported by Tor, with their full path, state, build latency and age. Holds at most
+ * {@link #MAX_CIRCUITS} circuits, closed ones are evicted first, least recently updated first.
+ * Relays are shared between circuits and bounded the same way, so a long session keeps a fixed
+ * amount of memory no matter how many circuits Tor goes through.
+ */
+public final class CircuitRegistry {
+
+    static final int MAX_CIRCUITS = 128;
+    static final int MAX_NODES = 512;
+
+    public static final String STATUS_LAUNCHED = "LAUNCHED";
+    public static final String STATUS_BUILT = "BUILT";
+    public static final String STATUS_CLOSED = "CLOSED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    private final LinkedHashMap<String, Circuit> mCircuits = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Node> mNodes = new LinkedHashMap<String, Node>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+            return size() > MAX_NODES;
+        }
+    };
+
+    /**
+     * Records a circuit status event.
+     *
+     * @param path control port path, "$fingerprint~name" or "$fingerprint=name" separated by
+     *             commas, where the name is optional
+     * @return the updated circuit itself, only to be read on the thread delivering events
+     */
+    synchronized Circuit update(String circID, String status, String path) {
+        long now = SystemClock.elapsedRealtime();
+        Circuit circuit = mCircuits.get(circID);
+        if (circuit == null) {
+            circuit = new Circuit(circID, now);
+            mCircuits.put(circID, circuit);
+            trim();
+        }
+        circuit.status = status;
+        circuit.updated = now;
+        if (STATUS_BUILT.equals(status) && circuit.built == 0) {
+            circuit.built = now;
+        }
+        if (path != null && path.length() > 0) {
+            parsePath(path, circuit);
+        }
+        return circuit;
+    }
+
+    /**
+     * @return copies of the circuits, least recently updated first
+     */
+    public synchronized List<Circuit> getCircuits() {
+        List<Circuit> circuits = new ArrayList<>(mCircuits.size());
+        for (Circuit circuit : mCircuits.values()) {
+            circuits.add(new Circuit(circuit));
+        }
+        return circuits;
+    }
+
+    /**
+     * @return copies of the circuits which are currently built
+     */
+    public synchronized List<Circuit> getBuiltCircuits() {
+        List<Circuit> circuits = new ArrayList<>();
+        for (Circuit circuit : mCircuits.values()) {
+            if (circuit.isBuilt()) {
+                circuits.add(new Circuit(circuit));
+            }
+        }
+        return circuits;
+    }
+
+    /**
+     * @return number of circuits which are currently built
+     */
+    public synchronized int countBuilt() {
+        int count = 0;
+        for (Circuit circuit : mCircuits.values()) {
+            if (circuit.isBuilt()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return mCircuits.size();
+    }
+
+    public synchronized void clear() {
+        mCircuits.clear();
+        mNodes.clear();
+    }
+
+    private void trim() {
+        if (mCircuits.size() <= MAX_CIRCUITS) {
+            return;
+        }
+        // iteration runs from the least recently updated circuit
+        Iterator<Circuit> it = mCircuits.values().iterator();
+        while (it.hasNext()) {
+            if (!it.next().isOpen()) {
+                it.remove();
+                return;
+            }
+        }
+        it = mCircuits.values().iterator();
+        it.next();
+        it.remove();
+    }
+
+    /**
+     * Splits the path in place with indexOf, looking hops up by fingerprint so a relay already seen
+     * costs no allocation beyond the lookup key.
+     */
+    private void parsePath(String path, Circuit circuit) {
+        int count = 1;
+        for (int i = path.indexOf(','); i != -1; i = path.indexOf(',', i + 1)) {
+            count++;
+        }
+        Node[] hops = circuit.hops.length == count ? circuit.hops : new Node[count];
+
+        int start = 0;
+        for (int hop = 0; hop < count; hop++) {
+            int end = path.indexOf(',', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            int separator = start;
+            while (separator < end && path.charAt(separator) != '~' && path.charAt(separator) != '=') {
+                separator++;
+            }
+            int idStart = start < end && path.charAt(start) == '$' ? start + 1 : start;
+            String id = path.substring(idStart, separator);
+
+            Node node = mNodes.get(id);
+            if (node == null || (separator < end && !path.regionMatches(separator + 1, node.name, 0,
+                    Math.max(node.name.length(), end - separator - 1)))) {
+                String name = separator < end ? path.substring(separator + 1, end) : id;
+                node = new Node(id, name);
+                mNodes.put(id, node);
+            }
+            hops[hop] = node;
+            start = end + 1;
+        }
+        circuit.hops = hops;
+    }
+
+    /**
+     * A circuit and its path. Instances returned by the registry are snapshots.
+     */
+    public static final class Circuit {
+        public final String id;
+        public final long created;
+        String status;
+        long updated;
+        long built;
+        Node[] hops = new Node[0];
+
+        Circuit(String id, long created) {
+            this.id = id;
+            this.created = created;
+        }
+
+        Circuit(Circuit other) {
+            this(other.id, other.created);
+            status = other.status;
+            updated = other.updated;
+            built = other.built;
+            hops = other.hops.clone();
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isBuilt() {
+            return STATUS_BUILT.equals(status);
+        }
+
+        public boolean isOpen() {
+            return !STATUS_CLOSED.equals(status) && !STATUS_FAILED.equals(status);
+        }
+
+        /**
+         * @return milliseconds from launch to built, or -1 if the circuit was never built
+         */
+        public long getBuildLatency() {
+            return built == 0 ? -1 : built - created;
+        }
+
+        /**
+         * @return milliseconds since the circuit was first seen
+         */
+        public long getAge() {
+            return SystemClock.elapsedRealtime() - created;
+        }
+
+        public Node[] getHops() {
+            return hops.clone();
+        }
+
+        /**
+         * @return the last hop, or null if the path isn't known yet
+         */
+        public Node getExit() {
+            return hops.length == 0 ? null : hops[hops.length - 1];
+        }
+    }
+
+    /**
+     * A relay, shared by all circuits going through it.
+     */
+    public static final class Node {
+        public final String id;
+        public final String name;
+
+        Node(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.torproject.android.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Turns the connectivity broadcasts into a stable connected state.
+ * <p>
+ * A change is only reported once the network has stayed in the new state for a while. That delay
+ * is longer for losing the network than for getting it back, so brief drops don't put Tor to sleep
+ * and wake it up again. Changes reverted within their delay are counted as suppressed flaps.
+ */
+final class ConnectivityMonitor {
+
+    interface Listener {
+        /**
+         * Called on the main thread once the network settled in a new state.
+         */
+        void onConnectivityChanged(boolean connected);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+
+    private boolean mConnected = true;
+    private boolean mObserved = true;
+    private boolean mPending = false;
+    private long mObservedSince;
+
+    private int mSleeps;
+    private int mWakes;
+    private int mSuppressed;
+    private long mSuppressedTime;
+
+    private final Runnable mSettle = new Runnable() {
+        public void run() {
+            mPending = false;
+            if (mObserved == mConnected)
+                return;
+            mConnected = mObserved;
+            if (mConnected)
+                mWakes++;
+            else
+                mSleeps++;
+            mListener.onConnectivityChanged(mConnected);
+        }
+    };
+
+    ConnectivityMonitor(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Records the state of the network, on the main thread.
+     *
+     * @param sleepDelay milliseconds the network must stay down to be reported lost
+     * @param wakeDelay  milliseconds the network must stay up to be reported back
+     */
+    void onNetworkState(boolean connected, long sleepDelay, long wakeDelay) {
+        if (connected == mObserved)
+            return; // Repeated broadcast, the delay keeps running from the first one
+        long now = SystemClock.elapsedRealtime();
+        mObserved = connected;
+        if (mPending) {
+            // Back to the reported state before the delay ran out
+            mHandler.removeCallbacks(mSettle);
+            mPending = false;
+            mSuppressed++;
+            mSuppressedTime += now - mObservedSince;
+            mObservedSince = now;
+            return;
+        }
+        mObservedSince = now;
+        mPending = true;
+        mHandler.postDelayed(mSettle, connected ? wakeDelay : sleepDelay);
+    }
+
+    /**
+     * @return the settled state of the network
+     */
+    boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Forgets a pending change, the network is assumed up until the next broadcast.
+     */
+    void reset() {
+        mHandler.removeCallbacks(mSettle);
+        mPending = false;
+        mConnected = true;
+        mObserved = true;
+    }
+
+    /**
+     * @return number of sleeps and wakes reported, and of flaps suppressed with their total
+     * duration
+     */
+    @Override
+    public String toString() {
+        return "sleeps=" + mSleeps + ", wakes=" + mWakes + ", suppressed=" + mSuppressed
+                + " (" + mSuppressedTime + "ms)";
+    }
+}
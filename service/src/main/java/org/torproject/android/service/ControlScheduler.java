@@ -0,0 +1,176 @@
+package org.torproject.android.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the commands controlling Tor one at a time, in order, on a single thread.
+ * <p>
+ * Commands are submitted under a key. While a command waits, a new command with the same key
+ * replaces it, so only the last wanted state is applied. Throttled commands run at most once per
+ * interval, further requests within the interval are folded into the one waiting.
+ */
+final class ControlScheduler {
+
+    static final String TOR = "tor";
+    static final String NETWORK = "network";
+    static final String NEWNYM = "newnym";
+    static final String CONFIG = "config";
+    static final String EXIT_NODES = "exit nodes";
+    static final String EVENTS = "events";
+
+    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
+    private final Map<String, Command> mPending = new HashMap<>();
+    private final Map<String, Long> mLastRun = new HashMap<>();
+    private final Map<String, Stats> mStats = new LinkedHashMap<>();
+
+    /**
+     * Queues the command, replacing the one waiting under the same key.
+     */
+    void submit(String key, Runnable task) {
+        schedule(key, task, 0);
+    }
+
+    /**
+     * Queues the command to run no sooner than interval milliseconds after the last run under the
+     * same key. While one waits, further requests are dropped.
+     */
+    void submitThrottled(String key, Runnable task, long interval) {
+        long delay;
+        synchronized (this) {
+            Command pending = mPending.get(key);
+            if (pending != null) {
+                Stats stats = stats(key);
+                stats.submitted++;
+                stats.coalesced++;
+                return;
+            }
+            Long lastRun = mLastRun.get(key);
+            delay = lastRun == null ? 0
+                    : Math.max(0, lastRun + interval - SystemClock.elapsedRealtime());
+        }
+        schedule(key, task, delay);
+    }
+
+    private void schedule(String key, Runnable task, long delay) {
+        synchronized (this) {
+            Stats stats = stats(key);
+            stats.submitted++;
+            Command pending = mPending.get(key);
+            if (pending != null) {
+                // Last writer wins, the waiting command keeps its place
+                pending.task = task;
+                stats.coalesced++;
+                return;
+            }
+            if (mExecutor.isShutdown())
+                return;
+            Command command = new Command(key, task);
+            mPending.put(key, command);
+            command.future = mExecutor.schedule(command, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return number of commands waiting to run
+     */
+    synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * Drops the throttled commands still waiting for their interval, and stops accepting new ones.
+     * The others still run in order on the scheduler thread, followed by last. Doesn't wait for
+     * them.
+     */
+    synchronized void shutdown(Runnable last) {
+        Iterator<Command> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            Command command = it.next();
+            if (command.future != null && command.future.getDelay(TimeUnit.MILLISECONDS) > 0) {
+                command.future.cancel(false);
+                it.remove();
+            }
+        }
+        mExecutor.execute(last);
+        mExecutor.shutdown();
+    }
+
+    private Stats stats(String key) {
+        Stats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return for each key, commands submitted, coalesced and run, and the average and longest
+     * time from submission to completion
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("queued=").append(mPending.size());
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            Stats stats = entry.getValue();
+            sb.append(", ").append(entry.getKey()).append('=')
+                    .append(stats.submitted).append('/')
+                    .append(stats.coalesced).append('/')
+                    .append(stats.executed)
+                    .append(" avg ").append(stats.executed > 0 ? stats.totalLatency / stats.executed : 0)
+                    .append("ms max ").append(stats.maxLatency).append("ms");
+        }
+        return sb.toString();
+    }
+
+    private static final class Stats {
+        int submitted;
+        int coalesced;
+        int executed;
+        long totalLatency;
+        long maxLatency;
+    }
+
+    private final class Command implements Runnable {
+        private final String mKey;
+        private final long mSubmitted = SystemClock.elapsedRealtime();
+        Runnable task;
+        ScheduledFuture<?> future;
+
+        Command(String key, Runnable task) {
+            mKey = key;
+            this.task = task;
+        }
+
+        public void run() {
+            Runnable current;
+            synchronized (ControlScheduler.this) {
+                mPending.remove(mKey);
+                current = task;
+            }
+            try {
+                current.run();
+            } catch (RuntimeException e) {
+                Log.e(OrbotConstants.TAG, "error running " + mKey, e);
+            }
+            long now = SystemClock.elapsedRealtime();
+            synchronized (ControlScheduler.this) {
+                mLastRun.put(mKey, now);
+                Stats stats = stats(mKey);
+                long latency = now - mSubmitted;
+                stats.executed++;
+                stats.totalLatency += latency;
+                stats.maxLatency = Math.max(stats.maxLatency, latency);
+            }
+        }
+    }
+}
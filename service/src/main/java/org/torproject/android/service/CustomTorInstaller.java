@@ -1,15 +1,26 @@
 package org.torproject.android.service;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.util.Log;
 import com.msopentech.thali.toronionproxy.TorInstaller;
 import org.torproject.android.service.util.Prefs;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Properties;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 public class CustomTorInstaller extends TorInstaller {
 
+    private static final String ASSETS_MANIFEST = "assets.properties";
+    private static final long TRANSFER_CHUNK = 1 << 20;
+
     private final Context context;
     private final File torrcFile;
     private final File configDir;
@@ -20,10 +31,21 @@ public class CustomTorInstaller extends TorInstaller {
         this.configDir = configDir;
     }
 
+    /**
+     * Installs the geoip databases only when the app has been updated since they were last
+     * installed, or when the installed file doesn't match the manifest. The torrc is small and
+     * gets regenerated before every start, so it's always copied.
+     */
     @Override
     public void setup() throws IOException {
-        copy(context.getAssets().open("common/geoip"), new File(configDir, "geoip"));
-        copy(context.getAssets().open("common/geoip6"), new File(configDir, "geoip6"));
+        File manifestFile = new File(configDir, ASSETS_MANIFEST);
+        Properties manifest = loadManifest(manifestFile);
+        String version = getAssetsVersion();
+        boolean changed = install("common/geoip", new File(configDir, "geoip"), version, manifest);
+        changed |= install("common/geoip6", new File(configDir, "geoip6"), version, manifest);
+        if (changed) {
+            saveManifest(manifest, manifestFile);
+        }
         copy(context.getAssets().open("common/torrc"), new File(configDir, "torrc"));
     }
 
@@ -54,6 +76,114 @@ public class CustomTorInstaller extends TorInstaller {
         return new SequenceInputStream(bridgeTypeStream, bridgeStream);
     }
 
+    /**
+     * Assets only change when the app is installed or updated.
+     */
+    private String getAssetsVersion() {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            return info.versionCode + "-" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies the asset to the target unless the manifest shows it installed from the same app
+     * version. The copy goes to a temporary file which is checksum verified and then renamed over
+     * the target, so the target is never left half written.
+     *
+     * @return true if the asset was installed
+     */
+    private boolean install(String asset, File target, String version, Properties manifest) throws IOException {
+        String name = target.getName();
+        String length = manifest.getProperty(name + ".length");
+        if (version != null && version.equals(manifest.getProperty(name + ".version"))
+                && manifest.getProperty(name + ".crc") != null
+                && length != null && target.length() == Long.parseLong(length)) {
+            Log.d("torResources", name + " is up to date");
+            return false;
+        }
+
+        File tmp = new File(configDir, name + ".tmp");
+        CheckedInputStream is = new CheckedInputStream(context.getAssets().open(asset), new CRC32());
+        FileOutputStream os = new FileOutputStream(tmp);
+        long size = 0;
+        try {
+            FileChannel out = os.getChannel();
+            ReadableByteChannel in = Channels.newChannel(is);
+            long count;
+            while ((count = out.transferFrom(in, size, TRANSFER_CHUNK)) > 0) {
+                size += count;
+            }
+            os.getFD().sync();
+        } finally {
+            os.close();
+            is.close();
+        }
+
+        long crc = is.getChecksum().getValue();
+        if (crc32(tmp) != crc) {
+            tmp.delete();
+            throw new IOException("checksum mismatch installing " + asset);
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("unable to rename " + tmp + " to " + target);
+        }
+
+        manifest.setProperty(name + ".version", version == null ? "" : version);
+        manifest.setProperty(name + ".crc", Long.toHexString(crc));
+        manifest.setProperty(name + ".length", Long.toString(size));
+        Log.d("torResources", "installed " + name + " (" + size + " bytes)");
+        return true;
+    }
+
+    private static long crc32(File file) throws IOException {
+        CheckedInputStream is = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        try {
+            byte[] buffer = new byte[8192];
+            while (is.read(buffer) >= 0) {
+                // checksum is updated while reading
+            }
+            return is.getChecksum().getValue();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static Properties loadManifest(File file) {
+        Properties manifest = new Properties();
+        if (file.exists()) {
+            try {
+                FileInputStream is = new FileInputStream(file);
+                try {
+                    manifest.load(is);
+                } finally {
+                    is.close();
+                }
+            } catch (IOException e) {
+                Log.w("torResources", "unable to read " + file, e);
+            }
+        }
+        return manifest;
+    }
+
+    private static void saveManifest(Properties manifest, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            manifest.store(os, null);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+    }
+
     private static void copy(InputStream is, File target) throws IOException {
         FileOutputStream os = new FileOutputStream(target);
         byte[] buffer = new byte[8192];
@@ -65,18 +195,22 @@ public class CustomTorInstaller extends TorInstaller {
         os.close();
     }
 
+    /**
+     * Replaces the file in one step, Tor may read it at any time.
+     */
     private static boolean updateTorConfigCustom(File fileTorRcCustom, String content) throws IOException {
-        if (fileTorRcCustom.exists()) {
-            fileTorRcCustom.delete();
-            Log.d("torResources", "deleting existing torrc.custom");
-        } else {
-            fileTorRcCustom.createNewFile();
+        File tmp = new File(fileTorRcCustom.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp, false);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(fileTorRcCustom)) {
+            tmp.delete();
+            throw new IOException("unable to rename " + tmp + " to " + fileTorRcCustom);
         }
-
-        FileOutputStream fos = new FileOutputStream(fileTorRcCustom, false);
-        PrintStream ps = new PrintStream(fos);
-        ps.print(content);
-        ps.close();
         return true;
     }
 }
@@ -9,9 +9,10 @@ import android.provider.BaseColumns;
 import android.util.Log;
 import com.msopentech.thali.toronionproxy.EventBroadcaster;
 import com.msopentech.thali.toronionproxy.TorConfig;
-import com.msopentech.thali.toronionproxy.TorConfigBuilder;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 final class DataService {
 
@@ -114,7 +115,14 @@ final class DataService {
         hsCursor.close();
     }
 
-    TorConfigBuilder updateConfigBuilder(TorConfigBuilder builder) {
+    /**
+     * Queries enabled hidden services and client cookies. Doesn't touch the config builder, so it
+     * can run while the rest of the torrc is generated.
+     *
+     * @return torrc lines to append
+     */
+    List<String> queryConfigLines() {
+        List<String> lines = new ArrayList<>();
         ContentResolver cr = mContext.getContentResolver();
 
         /* ---- Hidden Services ---- */
@@ -129,12 +137,12 @@ final class DataService {
                     String hsDirPath = new File(torConfig.getHiddenServiceDir(), "hs" + localPort).getCanonicalPath();
 
                     eventBroadcaster.broadcastDebug("Adding hidden service on port: " + localPort);
-                    builder.line("HiddenServiceDir " + hsDirPath);
-                    builder.line(String.format("HiddenServicePort %d 127.0.0.1:%d", onionPort, localPort));
+                    lines.add("HiddenServiceDir " + hsDirPath);
+                    lines.add(String.format("HiddenServicePort %d 127.0.0.1:%d", onionPort, localPort));
 
                     if (authCookie == 1) {
                         String name = hsCursor.getString(hsCursor.getColumnIndex(HiddenService.NAME));
-                        builder.line("HiddenServiceAuthorizeClient stealth " + name);
+                        lines.add("HiddenServiceAuthorizeClient stealth " + name);
                     }
                 }
             } catch (NumberFormatException e) {
@@ -152,14 +160,14 @@ final class DataService {
                 while (cookieCursor.moveToNext()) {
                     String domain = cookieCursor.getString(cookieCursor.getColumnIndex(ClientCookie.DOMAIN));
                     String cookie = cookieCursor.getString(cookieCursor.getColumnIndex(ClientCookie.AUTH_COOKIE_VALUE));
-                    builder.line(String.format("HidServAuth %s %s", domain, cookie));
+                    lines.add(String.format("HidServAuth %s %s", domain, cookie));
                 }
             } catch (Exception e) {
                 Log.e(OrbotConstants.TAG, "error starting share server", e);
             }
             cookieCursor.close();
         }
-        return builder;
+        return lines;
     }
 
     private static String readString(InputStream stream) {
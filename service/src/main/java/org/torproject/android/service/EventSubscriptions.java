@@ -0,0 +1,73 @@
+package org.torproject.android.service;
+
+import net.freehaven.tor.control.TorControlConnection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Subscribes the high volume control port events on the service's own connection, only while
+ * something consumes them. The base events the onion proxy manager subscribes on its connection
+ * (circuits, bandwidth, notices) are left alone.
+ */
+final class EventSubscriptions {
+
+    static final String STREAM = "STREAM";
+    static final String INFO = "INFO";
+    static final String DEBUG = "DEBUG";
+
+    private final TorControlClient mControl;
+    private TorControlConnection mConnection;
+    private List<String> mApplied = Collections.emptyList();
+
+    EventSubscriptions(TorControlClient control) {
+        mControl = control;
+    }
+
+    /**
+     * @param consumers whether bound clients are registered
+     * @param debug     whether debug lines are logged
+     * @return the events wanted from Tor
+     */
+    static List<String> wanted(boolean consumers, boolean debug) {
+        List<String> events = new ArrayList<>();
+        if (consumers) {
+            events.add(STREAM);
+            if (debug) {
+                events.add(INFO);
+                events.add(DEBUG);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Subscribes the events on the connection, unless they are already.
+     *
+     * @throws IOException if Tor doesn't run or refuses them.
+     */
+    synchronized void apply(List<String> events) throws IOException {
+        if (events.isEmpty() && mApplied.isEmpty())
+            return; // No need to connect for nothing
+        TorControlConnection connection = mControl.get();
+        if (connection != mConnection) {
+            // A new connection starts without events
+            mConnection = connection;
+            mApplied = Collections.emptyList();
+        }
+        if (events.equals(mApplied))
+            return;
+        connection.setEvents(events);
+        mApplied = events;
+    }
+
+    /**
+     * Forgets the subscriptions of a connection that is closed.
+     */
+    synchronized void reset() {
+        mConnection = null;
+        mApplied = Collections.emptyList();
+    }
+}
@@ -0,0 +1,175 @@
+package org.torproject.android.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Switches to a new identity with spare circuits ready. NEWNYM only retires the circuits streams
+ * already used, so clean circuits built just before it take the next requests right away instead
+ * of making them wait for a circuit to be built. The spare circuits follow the configured exit
+ * nodes like any other circuit.
+ * <p>
+ * Records the time from the request to the first circuit usable with the new identity.
+ */
+final class IdentityRotation implements TorEventHandler.CircuitListener {
+
+    private static final int SPARE_CIRCUITS = 2;
+    private static final long WARM_TIMEOUT = 5000;
+    // A circuit built later than this after NEWNYM no longer tells how long the switch took
+    private static final long PENDING_TIMEOUT = 10 * 1000;
+
+    private final TorControlClient mControl;
+    // Waiting for the spare circuits would hold up the other control commands
+    private final ExecutorService mWarmer = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "IdentityRotation");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // guarded by this
+    private final Set<String> mWarming = new HashSet<>();
+    private boolean mWarmingUp;
+    private int mWarmed;
+    private long mRequestedAt = -1;
+    private long mPendingSince = -1;
+
+    private long mLastLatency = -1;
+    private long mTotalLatency;
+    private int mRotations;
+
+    IdentityRotation(TorControlClient control) {
+        mControl = control;
+    }
+
+    /**
+     * Builds spare circuits on a thread of its own, waits up to a few seconds for one of them,
+     * then runs next. Requests made while spare circuits are being built are dropped, the one
+     * running ends with the same new identity.
+     *
+     * @param next submits the new identity signal
+     */
+    void warmUp(final Runnable next) {
+        synchronized (this) {
+            if (mWarmingUp)
+                return;
+            mWarmingUp = true;
+            mRequestedAt = SystemClock.elapsedRealtime();
+        }
+        mWarmer.execute(new Runnable() {
+            public void run() {
+                try {
+                    buildSpareCircuits();
+                } finally {
+                    synchronized (IdentityRotation.this) {
+                        mWarmingUp = false;
+                    }
+                }
+                next.run();
+            }
+        });
+    }
+
+    /**
+     * Runs the signal, then measures the time since the request: right away if a spare circuit
+     * was ready, otherwise when the next circuit is built.
+     *
+     * @param newnym sends NEWNYM to Tor
+     */
+    void rotate(Runnable newnym) {
+        long now = SystemClock.elapsedRealtime();
+        newnym.run();
+        synchronized (this) {
+            long start = mRequestedAt != -1 ? mRequestedAt : now;
+            if (mWarmed > 0)
+                record(SystemClock.elapsedRealtime() - start);
+            else
+                mPendingSince = start; // Measured when the next circuit is built
+            mRequestedAt = -1;
+            mWarmed = 0;
+        }
+    }
+
+    private void buildSpareCircuits() {
+        synchronized (this) {
+            mWarming.clear();
+            mWarmed = 0;
+        }
+        try {
+            for (int i = 0; i < SPARE_CIRCUITS; i++) {
+                // Replies "EXTENDED <id>"
+                String reply = mControl.get().extendCircuit("0", "");
+                int sep = reply.lastIndexOf(' ');
+                synchronized (this) {
+                    mWarming.add(reply.substring(sep + 1));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(OrbotConstants.TAG, "unable to build spare circuits: " + e.getMessage());
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + WARM_TIMEOUT;
+        synchronized (this) {
+            try {
+                while (mWarmed == 0 && !mWarming.isEmpty()) {
+                    long left = deadline - SystemClock.elapsedRealtime();
+                    if (left <= 0)
+                        break;
+                    wait(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWarming.clear();
+        }
+    }
+
+    @Override
+    public synchronized void onCircuitStatus(String circID, String status) {
+        if (CircuitRegistry.STATUS_BUILT.equals(status)) {
+            if (mWarming.remove(circID)) {
+                mWarmed++;
+                notifyAll();
+            } else if (mPendingSince != -1) {
+                long latency = SystemClock.elapsedRealtime() - mPendingSince;
+                if (latency <= PENDING_TIMEOUT)
+                    record(latency);
+                else
+                    mPendingSince = -1;
+            }
+        } else if (CircuitRegistry.STATUS_FAILED.equals(status)
+                || CircuitRegistry.STATUS_CLOSED.equals(status)) {
+            if (mWarming.remove(circID))
+                notifyAll();
+        }
+    }
+
+    private void record(long latency) {
+        mPendingSince = -1;
+        mLastLatency = latency;
+        mTotalLatency += latency;
+        mRotations++;
+    }
+
+    /**
+     * @return milliseconds from the last new identity request to its first usable circuit, -1 if
+     * none was measured yet
+     */
+    synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "last=" + mLastLatency + "ms, avg="
+                + (mRotations > 0 ? mTotalLatency / mRotations : -1) + "ms over " + mRotations;
+    }
+}
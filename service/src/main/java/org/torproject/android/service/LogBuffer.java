@@ -0,0 +1,68 @@
+package org.torproject.android.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring of the latest log lines. Writers claim a sequence number and store their line in
+ * its slot without locking; once the ring is full the oldest lines are overwritten. Readers copy
+ * the lines from a sequence number on, skipping those already overwritten.
+ */
+final class LogBuffer {
+
+    private final AtomicReferenceArray<Record> mRecords;
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+
+    /**
+     * @param capacity number of lines kept, rounded up to a power of two
+     */
+    LogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mRecords = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+    }
+
+    void add(String message) {
+        long seq = mNext.getAndIncrement();
+        mRecords.set((int) (seq & mMask), new Record(seq, message));
+    }
+
+    /**
+     * @return sequence number the next line will get
+     */
+    long end() {
+        return mNext.get();
+    }
+
+    /**
+     * Copies the lines from the given sequence number on, up to the first line still being
+     * written.
+     *
+     * @return sequence number to continue from
+     */
+    long copyTo(long from, List<String> out) {
+        long end = mNext.get();
+        long seq = Math.max(from, end - mRecords.length());
+        for (; seq < end; seq++) {
+            Record record = mRecords.get((int) (seq & mMask));
+            if (record == null || record.seq < seq)
+                break; // Claimed but not stored yet
+            if (record.seq == seq)
+                out.add(record.message);
+            // else overwritten by a newer line meanwhile
+        }
+        return seq;
+    }
+
+    private static final class Record {
+        final long seq;
+        final String message;
+
+        Record(long seq, String message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+}
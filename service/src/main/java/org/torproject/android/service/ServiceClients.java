@@ -0,0 +1,214 @@
+package org.torproject.android.service;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers the events of the service to the callbacks of bound clients.
+ * <p>
+ * Each client has at most one batch in flight. Events raised while a client handles a batch are
+ * merged into its next one: the latest status wins, and only the newest bandwidth samples and log
+ * lines are kept, so a slow client gets fewer, larger batches and never holds up the others.
+ */
+final class ServiceClients {
+
+    private static final int MAX_SAMPLES = 32;
+    private static final int MAX_LOG_LINES = 256;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ServiceClients");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final Map<IBinder, Client> mClients = new HashMap<>();
+    private volatile boolean mEmpty = true;
+    private volatile Runnable mOnChange;
+
+    /**
+     * Sets what runs after a client registered or went away.
+     */
+    void setOnChange(Runnable onChange) {
+        mOnChange = onChange;
+    }
+
+    boolean isEmpty() {
+        return mEmpty;
+    }
+
+    void register(ITorServiceCallback callback, String status) throws RemoteException {
+        IBinder binder = callback.asBinder();
+        Client client = new Client(callback);
+        binder.linkToDeath(client, 0);
+        synchronized (mClients) {
+            Client old = mClients.put(binder, client);
+            if (old != null)
+                binder.unlinkToDeath(old, 0);
+            mEmpty = false;
+        }
+        client.addStatus(status);
+        changed();
+    }
+
+    void unregister(ITorServiceCallback callback) {
+        IBinder binder = callback.asBinder();
+        synchronized (mClients) {
+            Client client = mClients.get(binder);
+            if (client != null)
+                remove(binder, client);
+        }
+    }
+
+    void onStatus(String status) {
+        for (Client client : clients())
+            client.addStatus(status);
+    }
+
+    void onBandwidth(long upload, long download, long written, long read) {
+        if (mEmpty)
+            return;
+        long[] sample = {upload, download, written, read};
+        for (Client client : clients())
+            client.addSample(sample);
+    }
+
+    void onLog(List<String> lines) {
+        for (Client client : clients())
+            client.addLogLines(lines);
+    }
+
+    void shutdown() {
+        synchronized (mClients) {
+            for (Map.Entry<IBinder, Client> entry : mClients.entrySet())
+                entry.getKey().unlinkToDeath(entry.getValue(), 0);
+            mClients.clear();
+            mEmpty = true;
+        }
+        mExecutor.shutdown();
+    }
+
+    private List<Client> clients() {
+        if (mEmpty)
+            return new ArrayList<>(0);
+        synchronized (mClients) {
+            return new ArrayList<>(mClients.values());
+        }
+    }
+
+    /**
+     * Removes the client, unless it was registered again meanwhile.
+     */
+    private void remove(IBinder binder, Client client) {
+        synchronized (mClients) {
+            if (mClients.get(binder) != client)
+                return;
+            mClients.remove(binder);
+            binder.unlinkToDeath(client, 0);
+            mEmpty = mClients.isEmpty();
+        }
+        changed();
+    }
+
+    private void changed() {
+        Runnable onChange = mOnChange;
+        if (onChange != null)
+            onChange.run();
+    }
+
+    private final class Client implements Runnable, IBinder.DeathRecipient {
+        private final ITorServiceCallback mCallback;
+
+        // guarded by this
+        private String mStatus;
+        private final ArrayDeque<long[]> mSamples = new ArrayDeque<>();
+        private final ArrayDeque<String> mLogLines = new ArrayDeque<>();
+        private int mDroppedSamples;
+        private int mDroppedLogLines;
+        private boolean mSending;
+
+        Client(ITorServiceCallback callback) {
+            mCallback = callback;
+        }
+
+        synchronized void addStatus(String status) {
+            mStatus = status;
+            send();
+        }
+
+        synchronized void addSample(long[] sample) {
+            if (mSamples.size() == MAX_SAMPLES) {
+                mSamples.removeFirst();
+                mDroppedSamples++;
+            }
+            mSamples.addLast(sample);
+            send();
+        }
+
+        synchronized void addLogLines(List<String> lines) {
+            for (String line : lines) {
+                if (mLogLines.size() == MAX_LOG_LINES) {
+                    mLogLines.removeFirst();
+                    mDroppedLogLines++;
+                }
+                mLogLines.addLast(line);
+            }
+            send();
+        }
+
+        private void send() {
+            if (mSending)
+                return; // Picked up when the batch in flight returns
+            mSending = true;
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                mSending = false; // already shut down
+            }
+        }
+
+        private synchronized TorEventBatch takeBatch() {
+            if (mStatus == null && mSamples.isEmpty() && mLogLines.isEmpty()) {
+                mSending = false;
+                return null;
+            }
+            TorEventBatch batch = new TorEventBatch(mStatus,
+                    TorEventBatch.packSamples(mSamples),
+                    new ArrayList<>(mLogLines), mDroppedSamples, mDroppedLogLines);
+            mStatus = null;
+            mSamples.clear();
+            mLogLines.clear();
+            mDroppedSamples = 0;
+            mDroppedLogLines = 0;
+            return batch;
+        }
+
+        public void run() {
+            TorEventBatch batch;
+            while ((batch = takeBatch()) != null) {
+                try {
+                    mCallback.onEvents(batch);
+                } catch (RemoteException | RuntimeException e) {
+                    Log.w(OrbotConstants.TAG, "dropping client: " + e);
+                    remove(mCallback.asBinder(), this);
+                    return;
+                }
+            }
+        }
+
+        public void binderDied() {
+            remove(mCallback.asBinder(), this);
+        }
+    }
+}
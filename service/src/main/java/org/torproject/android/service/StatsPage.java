@@ -0,0 +1,220 @@
+package org.torproject.android.service;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.torproject.android.service.TorServiceConstants.*;
+
+/**
+ * Fixed layout page of counters in a memory mapped file, written by the service and read by
+ * clients at any rate without a round trip to the service. Clients get the file from
+ * {@link ITorService#getStatsPage()} and read it with {@link Reader}.
+ * <p>
+ * Updates are guarded by a sequence number, odd while an update is being written. A reader
+ * retries until it reads the same even number before and after the counters.
+ */
+public final class StatsPage {
+
+    public static final int STATUS_CODE_OFF = 0;
+    public static final int STATUS_CODE_STARTING = 1;
+    public static final int STATUS_CODE_ON = 2;
+    public static final int STATUS_CODE_STOPPING = 3;
+
+    // Layout, big endian
+    private static final int MAGIC = 0x546f7253; // "TorS"
+    private static final int VERSION = 1;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_SEQ = 8;
+    private static final int OFFSET_STATUS = 12;
+    private static final int OFFSET_TOTAL_READ = 16;
+    private static final int OFFSET_TOTAL_WRITTEN = 24;
+    private static final int OFFSET_READ_RATE = 32;
+    private static final int OFFSET_WRITE_RATE = 40;
+    private static final int OFFSET_CIRCUITS = 48;
+    private static final int OFFSET_STREAMS = 52;
+    private static final int OFFSET_TOTAL_STREAMS = 56;
+    private static final int OFFSET_UPDATED = 64;
+    static final int SIZE = 72;
+
+    private static final int MAX_READ_ATTEMPTS = 64;
+
+    // Written then read around the sequence number, so its stores and loads stay on either side
+    // of those of the counters
+    private static volatile int sFence;
+
+    private final File mFile;
+    private MappedByteBuffer mBuffer;
+    private int mSeq;
+
+    StatsPage(File file) {
+        mFile = file;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(SIZE);
+                mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            } finally {
+                raf.close();
+            }
+            mSeq = mBuffer.getInt(OFFSET_SEQ) & ~1;
+            begin();
+            mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+            mBuffer.putInt(OFFSET_VERSION, VERSION);
+            for (int offset = OFFSET_STATUS; offset < SIZE; offset += 4)
+                mBuffer.putInt(offset, 0);
+            end();
+        } catch (IOException e) {
+            Log.w(OrbotConstants.TAG, "stats page unavailable", e);
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * @return read only descriptor of the page for a client, null if there is no page
+     */
+    ParcelFileDescriptor open() throws IOException {
+        if (mBuffer == null)
+            return null;
+        return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    synchronized void setStatus(String status) {
+        if (mBuffer == null)
+            return;
+        begin();
+        mBuffer.putInt(OFFSET_STATUS, toStatusCode(status));
+        end();
+    }
+
+    synchronized void setBandwidth(long readRate, long writeRate, long totalRead,
+                                   long totalWritten) {
+        if (mBuffer == null)
+            return;
+        begin();
+        mBuffer.putLong(OFFSET_READ_RATE, readRate);
+        mBuffer.putLong(OFFSET_WRITE_RATE, writeRate);
+        mBuffer.putLong(OFFSET_TOTAL_READ, totalRead);
+        mBuffer.putLong(OFFSET_TOTAL_WRITTEN, totalWritten);
+        end();
+    }
+
+    synchronized void setCircuits(int builtCircuits) {
+        if (mBuffer == null)
+            return;
+        begin();
+        mBuffer.putInt(OFFSET_CIRCUITS, builtCircuits);
+        end();
+    }
+
+    synchronized void setStreams(int openStreams, long totalStreams) {
+        if (mBuffer == null)
+            return;
+        begin();
+        mBuffer.putInt(OFFSET_STREAMS, openStreams);
+        mBuffer.putLong(OFFSET_TOTAL_STREAMS, totalStreams);
+        end();
+    }
+
+    private void begin() {
+        mBuffer.putInt(OFFSET_SEQ, ++mSeq);
+        fence();
+    }
+
+    private void end() {
+        mBuffer.putLong(OFFSET_UPDATED, System.currentTimeMillis());
+        fence();
+        mBuffer.putInt(OFFSET_SEQ, ++mSeq);
+    }
+
+    private static int fence() {
+        sFence = 0;
+        return sFence;
+    }
+
+    private static int toStatusCode(String status) {
+        if (STATUS_ON.equals(status))
+            return STATUS_CODE_ON;
+        if (STATUS_STARTING.equals(status))
+            return STATUS_CODE_STARTING;
+        if (STATUS_STOPPING.equals(status))
+            return STATUS_CODE_STOPPING;
+        return STATUS_CODE_OFF;
+    }
+
+    /**
+     * Counters read from the page at once.
+     */
+    public static final class Snapshot {
+        public int status;
+        public long totalRead;
+        public long totalWritten;
+        public long readRate;
+        public long writeRate;
+        public int circuits;
+        public int streams;
+        public long totalStreams;
+        /**
+         * Wall clock time in milliseconds of the last update.
+         */
+        public long updated;
+    }
+
+    /**
+     * Maps the page handed out by the service, on the client side.
+     */
+    public static final class Reader {
+        private final ByteBuffer mBuffer;
+
+        /**
+         * @throws IOException if the descriptor isn't a stats page
+         */
+        public Reader(ParcelFileDescriptor page) throws IOException {
+            FileInputStream in = new FileInputStream(page.getFileDescriptor());
+            try {
+                mBuffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            } finally {
+                in.close();
+            }
+            if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC || mBuffer.getInt(OFFSET_VERSION) != VERSION)
+                throw new IOException("not a stats page");
+        }
+
+        /**
+         * Copies the counters into the snapshot.
+         *
+         * @return false if the page kept changing while being read, the snapshot is then torn
+         */
+        public boolean read(Snapshot snapshot) {
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                int seq = mBuffer.getInt(OFFSET_SEQ);
+                if ((seq & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                fence();
+                snapshot.status = mBuffer.getInt(OFFSET_STATUS);
+                snapshot.totalRead = mBuffer.getLong(OFFSET_TOTAL_READ);
+                snapshot.totalWritten = mBuffer.getLong(OFFSET_TOTAL_WRITTEN);
+                snapshot.readRate = mBuffer.getLong(OFFSET_READ_RATE);
+                snapshot.writeRate = mBuffer.getLong(OFFSET_WRITE_RATE);
+                snapshot.circuits = mBuffer.getInt(OFFSET_CIRCUITS);
+                snapshot.streams = mBuffer.getInt(OFFSET_STREAMS);
+                snapshot.totalStreams = mBuffer.getLong(OFFSET_TOTAL_STREAMS);
+                snapshot.updated = mBuffer.getLong(OFFSET_UPDATED);
+                fence();
+                if (mBuffer.getInt(OFFSET_SEQ) == seq)
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.torproject.android.service;
+
+import android.util.Log;
+import com.msopentech.thali.toronionproxy.TorInstaller;
+
+import net.freehaven.tor.control.TorControlConnection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Applies the generated torrc. The configuration Tor runs with is kept as a map from key to lines,
+ * so a new configuration is compared key by key. The changed keys are handed to a running Tor
+ * with a single SETCONF, the removed ones with a RESETCONF, and the file is only rewritten when
+ * its content differs.
+ */
+final class TorConfigEngine {
+
+    // Hidden services are only accepted by Tor as a whole, in order
+    private static final String HIDDEN_SERVICE_PREFIX = "HiddenService";
+    private static final String HIDDEN_SERVICE_OPTIONS = "HiddenServiceOptions";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int RELOAD = -1;
+
+    private final TorInstaller mInstaller;
+    private final File mTorrcFile;
+    private final TorControlClient mControl;
+
+    private Map<String, List<String>> mApplied;
+    private long mFileCrc = -1;
+
+    TorConfigEngine(TorInstaller installer, File torrcFile, TorControlClient control) {
+        mInstaller = installer;
+        mTorrcFile = torrcFile;
+        mControl = control;
+    }
+
+    /**
+     * Writes the configuration, and when Tor runs, sets the keys that changed since it was last
+     * applied.
+     *
+     * @return number of lines set, or RELOAD if Tor rejected them and must reload the file.
+     * @throws IOException if the file can't be written.
+     */
+    synchronized int update(String config, boolean running) throws IOException {
+        Map<String, List<String>> next = parse(config);
+        if (mApplied == null)
+            mApplied = parse(readTorrc());
+        List<String> changes = diff(mApplied, next);
+
+        write(config);
+        // Only once written, a failed write is tried again with the same changes
+        mApplied = next;
+
+        if (running && !changes.isEmpty()) {
+            try {
+                setConf(changes);
+            } catch (IOException | RuntimeException e) {
+                Log.w(OrbotConstants.TAG, "SETCONF rejected: " + e);
+                return RELOAD;
+            }
+        }
+        return changes.size();
+    }
+
+    private void write(String config) throws IOException {
+        byte[] content = config.getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (mFileCrc == -1 && mTorrcFile.exists()) {
+            CRC32 fileCrc = new CRC32();
+            fileCrc.update(readTorrc().getBytes(UTF_8));
+            mFileCrc = fileCrc.getValue();
+        }
+        if (crc.getValue() == mFileCrc)
+            return;
+        try {
+            mInstaller.updateTorConfigCustom(config);
+        } catch (TimeoutException e) {
+            throw new IOException(e.toString());
+        }
+        mFileCrc = crc.getValue();
+    }
+
+    private void setConf(List<String> changes) throws IOException {
+        try {
+            setConf(mControl.get(), changes);
+        } catch (IOException e) {
+            // The connection may have been closed by a restart of Tor, try once more
+            mControl.close();
+            setConf(mControl.get(), changes);
+        }
+    }
+
+    /**
+     * Sends the changes from {@link #diff}: lines with a value by SETCONF, and the keys without
+     * one, which were removed, by RESETCONF to bring them back to their defaults.
+     */
+    static void setConf(TorControlConnection connection, List<String> changes)
+            throws IOException {
+        List<String> set = new ArrayList<>();
+        List<String> reset = new ArrayList<>();
+        for (String change : changes)
+            (change.indexOf(' ') < 0 ? reset : set).add(change);
+        if (!reset.isEmpty())
+            connection.resetConf(reset);
+        if (!set.isEmpty())
+            connection.setConf(set);
+    }
+
+    private String readTorrc() throws IOException {
+        if (!mTorrcFile.exists())
+            return "";
+        InputStream is = new FileInputStream(mTorrcFile);
+        try {
+            byte[] content = new byte[(int) mTorrcFile.length()];
+            int length = 0;
+            int read;
+            while (length < content.length
+                    && (read = is.read(content, length, content.length - length)) > 0)
+                length += read;
+            return new String(content, 0, length, UTF_8);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return lines of the configuration by key, in the order of the configuration.
+     */
+    static Map<String, List<String>> parse(String config) {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (String line : config.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#')
+                continue;
+            String[] parts = line.split("\\s+", 2);
+            String key = parts[0];
+            String normalized = parts.length > 1 ? key + ' ' + parts[1] : key;
+            String group = key.startsWith(HIDDEN_SERVICE_PREFIX) ? HIDDEN_SERVICE_PREFIX : key;
+            List<String> lines = map.get(group);
+            if (lines == null) {
+                lines = new ArrayList<>();
+                map.put(group, lines);
+            }
+            lines.add(normalized);
+        }
+        return map;
+    }
+
+    /**
+     * @return lines turning the old configuration into the new one. A key without value resets it
+     * to its default.
+     */
+    static List<String> diff(Map<String, List<String>> old, Map<String, List<String>> next) {
+        List<String> changes = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : next.entrySet()) {
+            if (!entry.getValue().equals(old.get(entry.getKey())))
+                changes.addAll(entry.getValue());
+        }
+        for (String key : old.keySet()) {
+            if (!next.containsKey(key))
+                changes.add(HIDDEN_SERVICE_PREFIX.equals(key) ? HIDDEN_SERVICE_OPTIONS : key);
+        }
+        return Collections.unmodifiableList(changes);
+    }
+}
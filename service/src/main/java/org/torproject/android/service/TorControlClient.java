@@ -0,0 +1,101 @@
+package org.torproject.android.service;
+
+import com.msopentech.thali.toronionproxy.TorConfig;
+import net.freehaven.tor.control.EventHandler;
+import net.freehaven.tor.control.TorControlConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Control connection of the service itself, next to the one the onion proxy manager keeps for its
+ * own use. It is opened on first use from the control port and cookie files Tor writes, and opened
+ * again after Tor restarts. Events subscribed on it go to the given handler.
+ */
+final class TorControlClient {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final TorConfig mConfig;
+    private final EventHandler mHandler;
+    private Socket mSocket;
+    private TorControlConnection mConnection;
+
+    TorControlClient(TorConfig config, EventHandler handler) {
+        mConfig = config;
+        mHandler = handler;
+    }
+
+    /**
+     * @return authenticated connection to the running Tor.
+     * @throws IOException if Tor doesn't run or refuses the connection.
+     */
+    synchronized TorControlConnection get() throws IOException {
+        if (mConnection != null && mSocket.isConnected() && !mSocket.isClosed())
+            return mConnection;
+        close();
+
+        InetSocketAddress address = readControlPort(mConfig.getControlPortFile());
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, CONNECT_TIMEOUT);
+            TorControlConnection connection = new TorControlConnection(socket);
+            connection.setEventHandler(mHandler);
+            connection.launchThread(true);
+            connection.authenticate(readFile(mConfig.getCookieAuthFile()));
+            mSocket = socket;
+            mConnection = connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return mConnection;
+    }
+
+    /**
+     * Closes the connection so the next command opens a new one.
+     */
+    synchronized void close() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+            }
+        }
+        mSocket = null;
+        mConnection = null;
+    }
+
+    private static InetSocketAddress readControlPort(File file) throws IOException {
+        // PORT=127.0.0.1:9051
+        String content = new String(readFile(file), "UTF-8").trim();
+        int sep = content.lastIndexOf(':');
+        if (!content.startsWith("PORT=") || sep < 0)
+            throw new IOException("no control port in " + file);
+        try {
+            return new InetSocketAddress(content.substring(5, sep),
+                    Integer.parseInt(content.substring(sep + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad control port in " + file);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int length;
+            while ((length = is.read(buffer)) > 0)
+                out.write(buffer, 0, length);
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
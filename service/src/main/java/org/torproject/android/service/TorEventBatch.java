@@ -0,0 +1,119 @@
+package org.torproject.android.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Events of the Tor service delivered to a bound client in one call: the status if it changed,
+ * the bandwidth samples and the log lines raised since the previous batch.
+ */
+public final class TorEventBatch implements Parcelable {
+
+    private static final int SAMPLE_SIZE = 4;
+
+    private final String mStatus;
+    // upload, download, written, read of each sample in turn
+    private final long[] mBandwidth;
+    private final List<String> mLogLines;
+    private final int mDroppedSamples;
+    private final int mDroppedLogLines;
+
+    TorEventBatch(String status, long[] bandwidth, List<String> logLines, int droppedSamples,
+                  int droppedLogLines) {
+        mStatus = status;
+        mBandwidth = bandwidth;
+        mLogLines = logLines;
+        mDroppedSamples = droppedSamples;
+        mDroppedLogLines = droppedLogLines;
+    }
+
+    private TorEventBatch(Parcel in) {
+        mStatus = in.readString();
+        mBandwidth = in.createLongArray();
+        mLogLines = in.createStringArrayList();
+        mDroppedSamples = in.readInt();
+        mDroppedLogLines = in.readInt();
+    }
+
+    /**
+     * @return the status of Tor, null if it didn't change since the previous batch
+     */
+    public String getStatus() {
+        return mStatus;
+    }
+
+    public int getBandwidthSampleCount() {
+        return mBandwidth.length / SAMPLE_SIZE;
+    }
+
+    public long getUpload(int sample) {
+        return mBandwidth[sample * SAMPLE_SIZE];
+    }
+
+    public long getDownload(int sample) {
+        return mBandwidth[sample * SAMPLE_SIZE + 1];
+    }
+
+    public long getWritten(int sample) {
+        return mBandwidth[sample * SAMPLE_SIZE + 2];
+    }
+
+    public long getRead(int sample) {
+        return mBandwidth[sample * SAMPLE_SIZE + 3];
+    }
+
+    public List<String> getLogLines() {
+        return mLogLines;
+    }
+
+    /**
+     * @return number of older bandwidth samples left out because the client was slow
+     */
+    public int getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * @return number of older log lines left out because the client was slow
+     */
+    public int getDroppedLogLines() {
+        return mDroppedLogLines;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mStatus);
+        dest.writeLongArray(mBandwidth);
+        dest.writeStringList(mLogLines);
+        dest.writeInt(mDroppedSamples);
+        dest.writeInt(mDroppedLogLines);
+    }
+
+    public static final Creator<TorEventBatch> CREATOR = new Creator<TorEventBatch>() {
+        public TorEventBatch createFromParcel(Parcel in) {
+            return new TorEventBatch(in);
+        }
+
+        public TorEventBatch[] newArray(int size) {
+            return new TorEventBatch[size];
+        }
+    };
+
+    static long[] packSamples(Collection<long[]> samples) {
+        long[] packed = new long[samples.size() * SAMPLE_SIZE];
+        int i = 0;
+        for (long[] sample : samples) {
+            System.arraycopy(sample, 0, packed, i, SAMPLE_SIZE);
+            i += SAMPLE_SIZE;
+        }
+        return packed;
+    }
+}
@@ -4,59 +4,48 @@ import android.text.TextUtils;
 import net.freehaven.tor.control.EventHandler;
 import org.torproject.android.service.util.Prefs;
 
-import java.text.NumberFormat;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.StringTokenizer;
 
 /**
  * Created by n8fr8 on 9/25/16.
  */
 public final class TorEventHandler implements EventHandler, TorServiceConstants {
 
+    interface CircuitListener {
+        void onCircuitStatus(String circID, String status);
+    }
+
     private final AndroidEventBroadcaster mBroadcaster;
     private final TorService mService;
-    private final NumberFormat mNumberFormat;
-
-    private long lastRead = -1;
-    private long lastWritten = -1;
-    private long mTotalTrafficWritten;
-    private long mTotalTrafficRead;
+    private final BandwidthAggregator mBandwidth;
 
-    private HashMap<String, Node> hmBuiltNodes = new HashMap<>();
+    private final CircuitRegistry mCircuits = new CircuitRegistry();
+    // ids of the streams Tor reported and didn't close yet
+    private final HashSet<String> mOpenStreams = new HashSet<>();
+    private long mTotalStreams;
+    private volatile CircuitListener mCircuitListener;
 
     public TorEventHandler(TorService service, AndroidEventBroadcaster eventBroadcaster) {
         mService = service;
         mBroadcaster = eventBroadcaster;
-        mNumberFormat = NumberFormat.getInstance(Locale.getDefault()); //localized numbers!
+        mBandwidth = new BandwidthAggregator(service, eventBroadcaster);
     }
 
     @Override
     public void bandwidthUsed(long read, long written) {
-        if (read != lastRead || written != lastWritten) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(formatCount(read));
-            sb.append(" \u2193");
-            sb.append(" / ");
-            sb.append(formatCount(written));
-            sb.append(" \u2191");
-
-            int iconId = R.drawable.ic_stat_tor;
-
-            if (read > 0 || written > 0)
-                iconId = R.drawable.ic_stat_tor_xfer;
-
-            mService.notify(sb.toString(), mService.getNotifyId(), iconId);
+        mBandwidth.record(read, written);
+    }
 
-            mTotalTrafficWritten += written;
-            mTotalTrafficRead += read;
-        }
+    /**
+     * Stops bandwidth updates until Tor reports traffic again.
+     */
+    public void stopBandwidthUpdates() {
+        mBandwidth.stop();
+    }
 
-        lastWritten = written;
-        lastRead = read;
-        mBroadcaster.broadcastBandwidth(lastWritten, lastRead, mTotalTrafficWritten,
-                mTotalTrafficRead);
+    public void shutdown() {
+        mBandwidth.shutdown();
     }
 
     public void circuitStatus(String status, String circID, String path) {
@@ -65,77 +54,63 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
             mBroadcaster.getStatus().on();
         }
 
-        StringBuilder sb = new StringBuilder().append("Circuit (").append((circID)).append(") ")
-                .append(status).append(": ");
-
-        StringTokenizer st = new StringTokenizer(path, ",");
-        Node node = null;
-
-        while (st.hasMoreTokens()) {
-            String nodePath = st.nextToken();
-            node = new Node();
-
-            String[] nodeParts;
-
-            if (nodePath.contains("="))
-                nodeParts = nodePath.split("=");
-            else
-                nodeParts = nodePath.split("~");
-
-            if (nodeParts.length == 1) {
-                node.id = nodeParts[0].substring(1);
-                node.name = node.id;
-            } else if (nodeParts.length == 2) {
-                node.id = nodeParts[0].substring(1);
-                node.name = nodeParts[1];
+        CircuitRegistry.Circuit circuit = mCircuits.update(circID, status, path);
+        mBroadcaster.getStatsPage().setCircuits(mCircuits.countBuilt());
+        CircuitListener listener = mCircuitListener;
+        if (listener != null)
+            listener.onCircuitStatus(circID, status);
+
+        boolean debug = Prefs.useDebugLogging();
+        if (debug || "BUILT".equals(status) || "CLOSED".equals(status)) {
+            StringBuilder sb = new StringBuilder().append("Circuit (").append((circID)).append(") ")
+                    .append(status).append(": ");
+            CircuitRegistry.Node[] hops = circuit.hops;
+            for (int i = 0; i < hops.length; i++) {
+                if (i > 0)
+                    sb.append(" > ");
+                sb.append(hops[i].name);
             }
+            if (circuit.isBuilt())
+                sb.append(" (").append(circuit.getBuildLatency()).append("ms)");
 
-            node.status = status;
-
-            sb.append(node.name);
-
-            if (st.hasMoreTokens())
-                sb.append(" > ");
+            if (debug)
+                mBroadcaster.broadcastDebug(sb.toString());
+            else
+                mBroadcaster.broadcastNotice(sb.toString());
         }
+    }
 
-        if (Prefs.useDebugLogging())
-            mBroadcaster.broadcastDebug(sb.toString());
-        else if ("BUILT".equals(status))
-            mBroadcaster.broadcastNotice(sb.toString());
-        else if ("CLOSED".equals(status))
-            mBroadcaster.broadcastNotice(sb.toString());
+    void setCircuitListener(CircuitListener listener) {
+        mCircuitListener = listener;
+    }
 
-        if (Prefs.expandedNotifications()) {
-            //get IP from last nodename
-            if ("BUILT".equals(status)) {
-                hmBuiltNodes.put(circID, node);
-            }
-            if ("CLOSED".equals(status)) {
-                hmBuiltNodes.remove(circID);
-            }
-        }
+    public CircuitRegistry getCircuits() {
+        return mCircuits;
     }
 
-    private String formatCount(long count) {
-        if (mNumberFormat == null) {
-            return "";
-        }
-        // Under 2Mb, returns "xxx.xKb"
-        // Over 2Mb, returns "xxx.xxMb"
-        if (count < 1e6)
-            return mNumberFormat.format(Math.round((float) ((int) (count * 10 / 1024)) / 10))
-                    + "kbps";
-        else
-            return mNumberFormat.format(Math.round((float) ((int) (count * 100 / 1024 / 1024)
-            ) / 100)) + "mbps";
+    /**
+     * Forgets the circuits and streams of a Tor that stopped.
+     */
+    public void clearConnections() {
+        mCircuits.clear();
+        mBroadcaster.getStatsPage().setCircuits(0);
+        clearStreams();
     }
 
-    public HashMap<String, Node> getNodes() {
-        return hmBuiltNodes;
+    /**
+     * Forgets the open streams, once their events are no longer subscribed.
+     */
+    void clearStreams() {
+        synchronized (mOpenStreams) {
+            mOpenStreams.clear();
+            mBroadcaster.getStatsPage().setStreams(0, mTotalStreams);
+        }
     }
 
     @Override
     public void message(String severity, String msg) {
+        if (("DEBUG".equals(severity) || "INFO".equals(severity)) && !mBroadcaster.isDebugEnabled())
+            return;
         mBroadcaster.broadcastNotice(severity + ": " + msg);
     }
 
@@ -145,6 +120,8 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
 
     @Override
     public void orConnStatus(String status, String orName) {
+        if (!mBroadcaster.isDebugEnabled())
+            return;
         StringBuilder sb = new StringBuilder()
                 .append("orConnStatus (").append(parseNodeName(orName)).append("): ").append
                         (status);
@@ -163,9 +140,24 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
 
     @Override
     public void streamStatus(String status, String streamID, String target) {
+        synchronized (mOpenStreams) {
+            boolean changed;
+            if ("CLOSED".equals(status)) {
+                changed = mOpenStreams.remove(streamID);
+            } else {
+                changed = mOpenStreams.add(streamID);
+                if (changed)
+                    mTotalStreams++;
+            }
+            if (changed)
+                mBroadcaster.getStatsPage().setStreams(mOpenStreams.size(), mTotalStreams);
+        }
+        // Busy browsing produces many of these, only formatted when debugging
+        if (!mBroadcaster.isDebugEnabled())
+            return;
         StringBuilder sb = new StringBuilder().append("StreamStatus (").append((streamID)).append
                 ("): ").append(status);
-        mBroadcaster.broadcastNotice(sb.toString());
+        mBroadcaster.broadcastDebug(sb.toString());
     }
 
     @Override
@@ -176,10 +168,4 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
             mBroadcaster.broadcastNotice(sb.toString());
         }
     }
-
-    public class Node {
-        String status;
-        String id;
-        String name;
-    }
 }
@@ -21,27 +21,42 @@ import com.msopentech.thali.toronionproxy.TorConfigBuilder;
 import com.msopentech.thali.toronionproxy.TorInstaller;
 import org.torproject.android.service.util.NotificationBuilderCompat;
 import org.torproject.android.service.util.Prefs;
+import org.torproject.android.service.util.ProcessTable;
 import org.torproject.android.service.util.TorServiceUtils;
 import org.torproject.android.service.vpn.TorVpnService;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public final class TorService extends Service implements TorServiceConstants, OrbotConstants {
 
     public final static String TOR_VERSION = "0.3.5.8-rc-openssl1.0.2p";
     private static final int NOTIFY_ID = 1;
     private static final int ERROR_NOTIFY_ID = 3;
+    // Tor ignores NEWNYM signals sent less than 10 seconds apart
+    private static final long NEWNYM_INTERVAL = 10 * 1000;
     private final static String NOTIFICATION_CHANNEL_ID = "orbot_channel_1";
-    private boolean mConnectivity = true;
+    private volatile boolean mConnectivity = true;
     private AndroidOnionProxyManager onionProxyManager;
     private ActionBroadcastReceiver mActionBroadcastReceiver;
     private AndroidEventBroadcaster mEventBroadcaster;
     private DataService mDataService;
     private TorEventHandler mEventHandler;
+    private TorServiceBinder mBinder;
     private ExecutorService mExecutor = Executors.newFixedThreadPool(3);
+    private final BootPipeline mBootPipeline = new BootPipeline();
+    private final ControlScheduler mScheduler = new ControlScheduler();
+    private Future<Boolean> mSetupResult;
+    private TorControlClient mControl;
+    private EventSubscriptions mEventSubscriptions;
+    private IdentityRotation mIdentityRotation;
+    private TorConfigEngine mConfigEngine;
     private SharedPreferences mPrefs;
     private int mPortSOCKS;
     private NotificationManager mNotificationManager;
@@ -61,25 +76,42 @@ public final class TorService extends Service implements TorServiceConstants, Or
             }
 
             final NetworkInfo netInfo = cm.getActiveNetworkInfo();
-            mConnectivity = netInfo != null && netInfo.isConnected();
-            if (mPrefs.getBoolean(OrbotConstants.PREF_DISABLE_NETWORK, true)
-                    && !mEventBroadcaster.getStatus().isOff()) {
-                setTorNetworkEnabledAsync(mConnectivity);
-                if (!mConnectivity) {
-                    mEventBroadcaster.broadcastNotice(context.getString(R.string
-                            .no_network_connectivity_putting_tor_to_sleep_));
-                    TorService.this.notify(getString(R.string.no_internet_connection_tor)
-                            , NOTIFY_ID, R.drawable.ic_stat_tor_off);
-                } else {
-                    mEventBroadcaster.broadcastNotice(context.getString(R.string
-                            .network_connectivity_is_good_waking_tor_up_));
-                    TorService.this.notify(getString(R.string.status_activated),
-                            NOTIFY_ID, R.drawable.ic_stat_tor);
-                }
-            }
+            mConnectivityMonitor.onNetworkState(netInfo != null && netInfo.isConnected(),
+                    Prefs.getNetworkSleepDelay(), Prefs.getNetworkWakeDelay());
         }
     };
 
+    // Kept in a field, preferences only hold weak references to their listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    updateEventSubscriptions();
+                }
+            };
+
+    private final ConnectivityMonitor mConnectivityMonitor = new ConnectivityMonitor(
+            new ConnectivityMonitor.Listener() {
+                public void onConnectivityChanged(boolean connected) {
+                    mConnectivity = connected;
+                    mEventBroadcaster.broadcastDebug("connectivity: " + mConnectivityMonitor);
+                    if (mPrefs.getBoolean(OrbotConstants.PREF_DISABLE_NETWORK, true)
+                            && !mEventBroadcaster.getStatus().isOff()) {
+                        setTorNetworkEnabledAsync(mConnectivity);
+                        if (!mConnectivity) {
+                            mEventBroadcaster.broadcastNotice(getString(R.string
+                                    .no_network_connectivity_putting_tor_to_sleep_));
+                            TorService.this.notify(getString(R.string.no_internet_connection_tor)
+                                    , NOTIFY_ID, R.drawable.ic_stat_tor_off);
+                        } else {
+                            mEventBroadcaster.broadcastNotice(getString(R.string
+                                    .network_connectivity_is_good_waking_tor_up_));
+                            TorService.this.notify(getString(R.string.status_activated),
+                                    NOTIFY_ID, R.drawable.ic_stat_tor);
+                        }
+                    }
+                }
+            });
+
     public void clearNotifications() {
         if (mNotificationManager != null)
             mNotificationManager.cancelAll();
@@ -117,9 +149,22 @@ public final class TorService extends Service implements TorServiceConstants, Or
         return mConnectivity;
     }
 
-    private void newIdentityAsync() {
+    void newIdentityAsync() {
+        if (Prefs.prewarmNewIdentity()) {
+            // Spare circuits are built off the control thread, only the signal is queued there
+            mIdentityRotation.warmUp(new Runnable() {
+                public void run() {
+                    submitNewIdentity();
+                }
+            });
+        } else {
+            submitNewIdentity();
+        }
+    }
+
+    private void submitNewIdentity() {
         //it is possible to not have a connection yet, and someone might try to newnym
-        new Thread() {
+        mScheduler.submitThrottled(ControlScheduler.NEWNYM, new Runnable() {
             public void run() {
                 if (!onionProxyManager.isRunning()) {
                     return;
@@ -128,23 +173,36 @@ public final class TorService extends Service implements TorServiceConstants, Or
                     TorService.this.notify(getString(R.string.newnym), getNotifyId(), R.drawable
                             .ic_stat_tor);
                 }
-                onionProxyManager.setNewIdentity();
+                mIdentityRotation.rotate(new Runnable() {
+                    public void run() {
+                        onionProxyManager.setNewIdentity();
+                    }
+                });
+                mEventBroadcaster.broadcastDebug("new identity: " + mIdentityRotation);
             }
-        }.start();
+        }, NEWNYM_INTERVAL);
     }
 
-    public void notify(String notifyMsg, int notifyType, int icon) {
-        PackageManager pm = getPackageManager();
-        Intent intent = pm.getLaunchIntentForPackage(getPackageName());
-        if(intent == null) {
-            Log.d(TAG, "Unable to notify: no intent found");
-            return;
-        }
-        intent.setAction(TorServiceConstants.TOR_APP_USERNAME);
-        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        PendingIntent pendIntent = PendingIntent.getActivity(getApplicationContext(), 0, intent, 0);
+    /**
+     * @return milliseconds from the last new identity request to its first usable circuit, -1 if
+     * none was measured yet
+     */
+    public long getNewIdentityLatency() {
+        return mIdentityRotation.getLastLatency();
+    }
 
+    public synchronized void notify(String notifyMsg, int notifyType, int icon) {
         if (mNotifyBuilder == null) {
+            PackageManager pm = getPackageManager();
+            Intent intent = pm.getLaunchIntentForPackage(getPackageName());
+            if(intent == null) {
+                Log.d(TAG, "Unable to notify: no intent found");
+                return;
+            }
+            intent.setAction(TorServiceConstants.TOR_APP_USERNAME);
+            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            PendingIntent pendIntent = PendingIntent.getActivity(getApplicationContext(), 0, intent, 0);
+
             mNotifyBuilder = new NotificationBuilderCompat(this, NOTIFICATION_CHANNEL_ID)
                     .setContentTitle(getString(R.string.app_name)).setContentIntent(pendIntent).setCategory("service")
                     .setSmallIcon(R.drawable.ic_stat_tor);
@@ -197,11 +255,36 @@ public final class TorService extends Service implements TorServiceConstants, Or
 
     @Override
     public IBinder onBind(Intent intent) {
-        Log.e(TAG, "onBind");
-        if (intent != null && intent.getAction() != null) {
-            Log.e(TAG, intent.getAction());
+        Log.d(TAG, "onBind");
+        return mBinder;
+    }
+
+    /**
+     * Starts Tor for a bound client. The service is started as well, so Tor keeps running once
+     * the client unbinds.
+     */
+    void startFromBinder() {
+        Intent intent = new Intent(this, TorService.class).setAction(ACTION_START);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            startForegroundService(intent);
+        } else {
+            startService(intent);
         }
-        return null;
+    }
+
+    void setExitNodes(final String newExits) {
+        SharedPreferences prefs = TorServiceUtils.getSharedPrefs
+                (getApplicationContext());
+        if (TextUtils.isEmpty(newExits)) {
+            prefs.edit().remove("pref_exit_nodes").apply();
+        } else {
+            prefs.edit().putString("pref_exit_nodes", newExits).apply();
+        }
+        mScheduler.submit(ControlScheduler.EXIT_NODES, new Runnable() {
+            public void run() {
+                onionProxyManager.setExitNode(newExits);
+            }
+        });
     }
 
     @Override
@@ -217,6 +300,7 @@ public final class TorService extends Service implements TorServiceConstants, Or
         AndroidTorSettings androidTorSettings = new AndroidTorSettings(this, mPrefs);
         mEventBroadcaster = new AndroidEventBroadcaster(getApplicationContext(), androidTorSettings);
         mEventHandler = new TorEventHandler(this, mEventBroadcaster);
+        mBinder = new TorServiceBinder(this, mEventBroadcaster);
 
         File configDir = getDir("torservice", Context.MODE_PRIVATE);
         File nativeDir = new File(getApplicationInfo().nativeLibraryDir);
@@ -226,6 +310,17 @@ public final class TorService extends Service implements TorServiceConstants, Or
         onionProxyManager =
                 new AndroidOnionProxyManager(getApplicationContext(), torConfig,
                         torInstaller, androidTorSettings, mEventBroadcaster, mEventHandler);
+        mControl = new TorControlClient(torConfig, mEventHandler);
+        mEventSubscriptions = new EventSubscriptions(mControl);
+        mIdentityRotation = new IdentityRotation(mControl);
+        mEventHandler.setCircuitListener(mIdentityRotation);
+        mEventBroadcaster.getClients().setOnChange(new Runnable() {
+            public void run() {
+                updateEventSubscriptions();
+            }
+        });
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+        mConfigEngine = new TorConfigEngine(torInstaller, torConfig.getTorrcFile(), mControl);
         mDataService = new DataService(getApplicationContext(), this, onionProxyManager.getContext().getConfig(),
                 mEventBroadcaster);
 
@@ -234,13 +329,18 @@ public final class TorService extends Service implements TorServiceConstants, Or
         mActionBroadcastReceiver = new ActionBroadcastReceiver();
         registerReceiver(mActionBroadcastReceiver, new IntentFilter(CMD_NEWNYM));
 
-        new Thread(new Runnable() {
+        mSetupResult = mBootPipeline.submit(BootPipeline.STAGE_ASSETS, new Callable<Boolean>() {
+            public Boolean call() {
+                return setupTor();
+            }
+        });
+        mExecutor.execute(new Runnable() {
             public void run() {
-                if (setupTor()) {
+                if (awaitSetup()) {
                     notifyIfConnectedToTorNetwork();
                 }
             }
-        }).start();
+        });
 
         Log.i("TorService", "onCreate end");
     }
@@ -253,7 +353,17 @@ public final class TorService extends Service implements TorServiceConstants, Or
         } catch (IllegalArgumentException iae) {
 
         }
+        mConnectivityMonitor.reset();
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefsListener);
         stopTorAsync();
+        // The stop still needs the boot pipeline and the event handling, release them after it
+        mScheduler.shutdown(new Runnable() {
+            public void run() {
+                mBootPipeline.shutdown();
+                mEventHandler.shutdown();
+                mEventBroadcaster.shutdown();
+            }
+        });
         super.onDestroy();
     }
 
@@ -280,11 +390,11 @@ public final class TorService extends Service implements TorServiceConstants, Or
     }
 
     private void setTorNetworkEnabledAsync(final boolean isEnabled) {
-        new Thread() {
+        mScheduler.submit(ControlScheduler.NETWORK, new Runnable() {
             public void run() {
                 onionProxyManager.disableNetwork(isEnabled);
             }
-        }.start();
+        });
     }
 
     private boolean setupTor() {
@@ -298,23 +408,113 @@ public final class TorService extends Service implements TorServiceConstants, Or
         }
     }
 
-    private synchronized void startTor() {
+    /**
+     * Waits for the binaries and assets installed by onCreate.
+     */
+    private boolean awaitSetup() {
+        try {
+            return BootPipeline.await(mSetupResult);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return duration in milliseconds of each stage of the last start
+     */
+    public Map<String, Long> getBootTimings() {
+        return mBootPipeline.getTimings();
+    }
+
+    /**
+     * @return the latest log lines, oldest first, without waiting for their broadcast
+     */
+    public List<String> getLogSnapshot() {
+        return mEventBroadcaster.getLogSnapshot();
+    }
+
+    /**
+     * @return number of control commands waiting to run
+     */
+    public int getCommandQueueDepth() {
+        return mScheduler.getQueueDepth();
+    }
+
+    /**
+     * @return counts and latencies of the control commands by kind
+     */
+    public String getCommandStats() {
+        return mScheduler.toString();
+    }
+
+    /**
+     * @return sleeps and wakes caused by connectivity changes, and the flaps that were suppressed
+     */
+    public String getConnectivityStats() {
+        return mConnectivityMonitor.toString();
+    }
+
+    /**
+     * Subscribes the high volume events of Tor while bound clients use them, and drops them
+     * otherwise.
+     */
+    private void updateEventSubscriptions() {
+        mScheduler.submit(ControlScheduler.EVENTS, new Runnable() {
+            public void run() {
+                if (!onionProxyManager.isRunning())
+                    return;
+                List<String> events = EventSubscriptions.wanted(
+                        !mEventBroadcaster.getClients().isEmpty(),
+                        mEventBroadcaster.isDebugEnabled());
+                try {
+                    mEventSubscriptions.apply(events);
+                } catch (IOException e) {
+                    Log.w(OrbotConstants.TAG, "unable to set events: " + e.getMessage());
+                    return;
+                }
+                if (!events.contains(EventSubscriptions.STREAM))
+                    mEventHandler.clearStreams();
+                mEventBroadcaster.broadcastDebug("control port events: " + events);
+            }
+        });
+    }
+
+    private void startTorAsync() {
+        // Shares its key with stopping, only the last of start and stop requests is run
+        mScheduler.submit(ControlScheduler.TOR, new Runnable() {
+            public void run() {
+                startTor();
+            }
+        });
+    }
+
+    private void startTor() {
         if (mEventBroadcaster.getStatus().isStopping()) {
             mEventBroadcaster.broadcastLogMessage("Ignoring start request, currently stopping");
-        } else if (mEventBroadcaster.getStatus().isOn() && onionProxyManager.getTorPid() != -1) {
+        } else if (mEventBroadcaster.getStatus().isOn()
+                && ProcessTable.isAlive(onionProxyManager.getTorPid())) {
             mEventBroadcaster.broadcastLogMessage("Ignoring start request, already started.");
             setTorNetworkEnabledAsync(true);
         } else {
             try {
-                updateTorrcConfig();
+                awaitSetup();
+                updateTorrcConfig(false);
                 mEventBroadcaster.broadcastNotice("checking binary version: " + TOR_VERSION);
                 mEventBroadcaster.getStatus().starting();
                 notify(getString(R.string.status_starting_up), NOTIFY_ID,
                         R.drawable.ic_stat_tor);
                 mEventBroadcaster.broadcastNotice(getString(R.string.status_starting_up));
-                onionProxyManager.start();
+                mBootPipeline.run(BootPipeline.STAGE_LAUNCH, new Callable<Void>() {
+                    public Void call() throws Exception {
+                        onionProxyManager.start();
+                        return null;
+                    }
+                });
                 mEventBroadcaster.broadcastLogMessage(getString(R.string.tor_process_starting)
                         + ' ' + getString(R.string.tor_process_complete));
+                updateEventSubscriptions();
+                Log.i(OrbotConstants.TAG, "boot timings: " + mBootPipeline);
+                mEventBroadcaster.broadcastDebug("boot timings: " + mBootPipeline);
                 mDataService.updateHiddenServices();
             } catch (Exception e) {
                 mEventBroadcaster.broadcastException("Unable to start Tor: " + e.toString(), e);
@@ -343,40 +543,74 @@ public final class TorService extends Service implements TorServiceConstants, Or
             mEventBroadcaster.broadcastNotice("An error occured stopping Tor: " + e.getMessage());
             mEventBroadcaster.broadcastLogMessage(getString(R.string.something_bad_happened));
         }
-        mEventHandler.getNodes().clear();
+        mEventSubscriptions.reset();
+        mControl.close();
+        mEventHandler.clearConnections();
+        mEventHandler.stopBandwidthUpdates();
         clearNotifications();
         mEventBroadcaster.getStatus().off();
     }
 
     private void stopTorAsync() {
-        new Thread(new Runnable() {
+        mScheduler.submit(ControlScheduler.TOR, new Runnable() {
             public void run() {
                 stopTorAndClearNotifications();
+                mEventBroadcaster.broadcastDebug("control commands: " + mScheduler);
             }
-        }).start();
+        });
     }
 
     /**
-     * Updates the torrc file based on the current user preferences
+     * Updates the torrc file based on the current user preferences. The base configuration, the
+     * bridge lines and the hidden service lines are built concurrently, then joined in that order.
+     *
+     * @param running whether Tor runs and gets the changed keys over the control port
      */
-    private boolean updateTorrcConfig() {
+    private boolean updateTorrcConfig(boolean running) {
         try {
             mEventBroadcaster.broadcastNotice(getString(R.string
                     .updating_settings_in_tor_service));
-            TorConfigBuilder builder = onionProxyManager.getContext()
-                    .newConfigBuilder().updateTorConfig();
-
-            //Check bridges to see if we need this
-            File nativeDir = new File(getApplicationInfo().nativeLibraryDir);
-            File pluggableTransport = new File(nativeDir, "libObfs4proxy.so");
-            if(!pluggableTransport.canExecute()) pluggableTransport.setExecutable(true);
-
-            builder.configurePluggableTransportsFromSettings(pluggableTransport);
-            mDataService.updateConfigBuilder(builder);
-            onionProxyManager.getTorInstaller().updateTorConfigCustom
-                    (builder.asString());
+            Future<TorConfigBuilder> torrc = mBootPipeline.submit(BootPipeline.STAGE_TORRC,
+                    new Callable<TorConfigBuilder>() {
+                        public TorConfigBuilder call() throws Exception {
+                            return onionProxyManager.getContext().newConfigBuilder().updateTorConfig();
+                        }
+                    });
+            Future<String> bridges = mBootPipeline.submit(BootPipeline.STAGE_BRIDGES,
+                    new Callable<String>() {
+                        public String call() throws Exception {
+                            //Check bridges to see if we need this
+                            File nativeDir = new File(getApplicationInfo().nativeLibraryDir);
+                            File pluggableTransport = new File(nativeDir, "libObfs4proxy.so");
+                            if(!pluggableTransport.canExecute()) pluggableTransport.setExecutable(true);
+
+                            return onionProxyManager.getContext().newConfigBuilder()
+                                    .configurePluggableTransportsFromSettings(pluggableTransport).asString();
+                        }
+                    });
+            Future<List<String>> hiddenServices = mBootPipeline.submit(BootPipeline.STAGE_HIDDEN_SERVICES,
+                    new Callable<List<String>>() {
+                        public List<String> call() {
+                            return mDataService.queryConfigLines();
+                        }
+                    });
+
+            TorConfigBuilder builder = BootPipeline.await(torrc);
+            builder.line(BootPipeline.await(bridges).trim());
+            for (String line : BootPipeline.await(hiddenServices)) {
+                builder.line(line);
+            }
+
+            String config = builder.asString();
             mEventBroadcaster.broadcastNotice("updating torrc custom configuration...");
-            mEventBroadcaster.broadcastDebug("torrc.custom=" + builder.asString());
+            mEventBroadcaster.broadcastDebug("torrc.custom=" + config);
+            int changed = mConfigEngine.update(config, running);
+            if (changed == TorConfigEngine.RELOAD) {
+                mEventBroadcaster.broadcastNotice("reloading torrc...");
+                onionProxyManager.reloadTorConfig();
+            } else if (running) {
+                mEventBroadcaster.broadcastDebug("applied " + changed + " changed torrc lines");
+            }
             mEventBroadcaster.broadcastNotice("success.");
         } catch (Exception e) {
             e.printStackTrace();
@@ -410,13 +644,18 @@ public final class TorService extends Service implements TorServiceConstants, Or
                 switch (action) {
                     case ACTION_START:
                         mEventBroadcaster.replyWithStatus(mIntent);
-                        startTor();
+                        startTorAsync();
                         break;
                     case ACTION_STATUS:
                         mEventBroadcaster.replyWithStatus(mIntent);
                         break;
                     case CMD_SIGNAL_HUP:
-                        onionProxyManager.reloadTorConfig();
+                        // Only what changed in the settings is handed to Tor
+                        mScheduler.submit(ControlScheduler.CONFIG, new Runnable() {
+                            public void run() {
+                                updateTorrcConfig(onionProxyManager.isRunning());
+                            }
+                        });
                         break;
                     case CMD_NEWNYM:
                         newIdentityAsync();
@@ -428,15 +667,7 @@ public final class TorService extends Service implements TorServiceConstants, Or
                         clearVpnProxy();
                         break;
                     case CMD_SET_EXIT:
-                        String newExits = mIntent.getStringExtra("exit");
-                        SharedPreferences prefs = TorServiceUtils.getSharedPrefs
-                                (getApplicationContext());
-                        if (TextUtils.isEmpty(newExits)) {
-                            prefs.edit().remove("pref_exit_nodes").apply();
-                        } else {
-                            prefs.edit().putString("pref_exit_nodes", newExits).apply();
-                        }
-                        onionProxyManager.setExitNode(newExits);
+                        setExitNodes(mIntent.getStringExtra("exit"));
                         break;
                     default:
                         Log.w(OrbotConstants.TAG, "unhandled TorService Intent: " + action);
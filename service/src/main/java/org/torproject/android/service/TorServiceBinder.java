@@ -0,0 +1,68 @@
+package org.torproject.android.service;
+
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Binder of {@link TorService}: bound clients register a callback for status, bandwidth and log
+ * events, and call the control actions directly instead of sending intents.
+ */
+final class TorServiceBinder extends ITorService.Stub {
+
+    private final TorService mService;
+    private final AndroidEventBroadcaster mBroadcaster;
+
+    TorServiceBinder(TorService service, AndroidEventBroadcaster broadcaster) {
+        mService = service;
+        mBroadcaster = broadcaster;
+    }
+
+    @Override
+    public void registerCallback(ITorServiceCallback callback) throws RemoteException {
+        if (callback != null)
+            mBroadcaster.getClients().register(callback, mBroadcaster.getStatus().getStatus());
+    }
+
+    @Override
+    public void unregisterCallback(ITorServiceCallback callback) {
+        if (callback != null)
+            mBroadcaster.getClients().unregister(callback);
+    }
+
+    @Override
+    public String getStatus() {
+        return mBroadcaster.getStatus().getStatus();
+    }
+
+    @Override
+    public List<String> getLogSnapshot() {
+        return mBroadcaster.getLogSnapshot();
+    }
+
+    @Override
+    public ParcelFileDescriptor getStatsPage() throws RemoteException {
+        try {
+            return mBroadcaster.getStatsPage().open();
+        } catch (IOException e) {
+            throw new RemoteException(e.toString());
+        }
+    }
+
+    @Override
+    public void start() {
+        mService.startFromBinder();
+    }
+
+    @Override
+    public void newIdentity() {
+        mService.newIdentityAsync();
+    }
+
+    @Override
+    public void setExitNodes(String exitNodes) {
+        mService.setExitNodes(exitNodes);
+    }
+}
@@ -58,6 +58,10 @@ public interface TorServiceConstants {
     String LOCAL_ACTION_LOG = "log";
     String LOCAL_ACTION_BANDWIDTH = "bandwidth";
     String LOCAL_EXTRA_LOG = "log";
+    /**
+     * The lines of a {@link #LOCAL_ACTION_LOG} batch, {@link #LOCAL_EXTRA_LOG} has them joined.
+     */
+    String LOCAL_EXTRA_LOG_LINES = "log_lines";
 
     /**
      * All tor-related services and daemons are stopped
@@ -25,6 +25,10 @@ public class Prefs {
     private final static String PREF_USE_SYSTEM_IPTABLES = "pref_use_sys_iptables";
     private final static String PREF_USE_VPN = "pref_vpn";
     private final static String PREF_EXIT_NODES = "pref_exit_nodes";
+    private final static String PREF_BANDWIDTH_INTERVAL = "pref_bandwidth_interval";
+    private final static String PREF_NETWORK_SLEEP_DELAY = "pref_network_sleep_delay";
+    private final static String PREF_NETWORK_WAKE_DELAY = "pref_network_wake_delay";
+    private final static String PREF_NEWNYM_PREWARM = "pref_newnym_prewarm";
     
     private static SharedPreferences prefs;
 
@@ -101,10 +105,51 @@ public class Prefs {
         return prefs.getBoolean(PREF_EXPANDED_NOTIFICATIONS, true);
     }
 
+    /**
+     * @return whether spare circuits are built before switching to a new identity
+     */
+    public static boolean prewarmNewIdentity() {
+        return prefs.getBoolean(PREF_NEWNYM_PREWARM, true);
+    }
+
     public static boolean useDebugLogging() {
         return prefs.getBoolean(PREF_ENABLE_LOGGING, false);
     }
 
+    /**
+     * @return milliseconds between bandwidth updates of the notification and listeners
+     */
+    public static int getBandwidthUpdateInterval() {
+        try {
+            return Math.max(1, Integer.parseInt(prefs.getString(PREF_BANDWIDTH_INTERVAL, "2"))) * 1000;
+        } catch (NumberFormatException e) {
+            return 2000;
+        }
+    }
+
+    /**
+     * @return milliseconds the network must stay down before Tor is put to sleep
+     */
+    public static long getNetworkSleepDelay() {
+        return getSeconds(PREF_NETWORK_SLEEP_DELAY, 30);
+    }
+
+    /**
+     * @return milliseconds the network must stay up before Tor is woken
+     */
+    public static long getNetworkWakeDelay() {
+        return getSeconds(PREF_NETWORK_WAKE_DELAY, 2);
+    }
+
+    private static long getSeconds(String key, int defaultValue) {
+        try {
+            return Math.max(0, Integer.parseInt(prefs.getString(key,
+                    Integer.toString(defaultValue)))) * 1000L;
+        } catch (NumberFormatException e) {
+            return defaultValue * 1000L;
+        }
+    }
+
     public static boolean persistNotifications() {
         return prefs.getBoolean(PREF_PERSIST_NOTIFICATIONS, true);
     }
@@ -0,0 +1,165 @@
+package org.torproject.android.service.util;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Finds and signals processes by reading /proc, instead of running ps and kill binaries.
+ * <p>
+ * The pid found for a command is remembered, later lookups only check that the process still
+ * runs the same command before scanning /proc again.
+ */
+public final class ProcessTable {
+
+    private static final String PROC = "/proc";
+    private static final long POLL_INTERVAL = 50;
+
+    private static final HashMap<String, Integer> sPids = new HashMap<>();
+
+    private ProcessTable() {
+    }
+
+    /**
+     * @return pid of a process whose command line starts with the given command, -1 if there is
+     * none.
+     */
+    public static int findProcessId(String command) {
+        synchronized (sPids) {
+            Integer cached = sPids.get(command);
+            if (cached != null) {
+                if (matches(cached, command))
+                    return cached;
+                sPids.remove(command);
+            }
+        }
+
+        String[] entries = new File(PROC).list();
+        if (entries == null)
+            return -1;
+        int self = Process.myPid();
+        for (String entry : entries) {
+            int pid = parsePid(entry);
+            if (pid <= 0 || pid == self)
+                continue;
+            if (matches(pid, command)) {
+                synchronized (sPids) {
+                    sPids.put(command, pid);
+                }
+                return pid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the process exists and has not exited, a zombie counts as gone.
+     */
+    public static boolean isAlive(int pid) {
+        if (pid <= 0)
+            return false;
+        String stat = read(PROC + "/" + pid + "/stat");
+        if (stat == null)
+            return false;
+        // State follows the command name, which is in parentheses
+        int end = stat.lastIndexOf(')');
+        return end < 0 || end + 2 >= stat.length() || stat.charAt(end + 2) != 'Z';
+    }
+
+    /**
+     * Sends the signal to the process, and waits up to timeout milliseconds for it to exit.
+     *
+     * @return true if the process is gone.
+     */
+    public static boolean signal(int pid, int signal, long timeout) {
+        if (!isAlive(pid))
+            return true;
+        Process.sendSignal(pid, signal);
+        return waitFor(pid, timeout);
+    }
+
+    /**
+     * Waits up to timeout milliseconds for the process to exit.
+     *
+     * @return true if the process is gone.
+     */
+    public static boolean waitFor(int pid, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (isAlive(pid)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+            try {
+                Thread.sleep(Math.min(POLL_INTERVAL, left));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return !isAlive(pid);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Signals every process running the given command and waits for them to exit.
+     *
+     * @return true if no process runs the command anymore.
+     */
+    public static boolean killProcess(String command, int signal, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        int pid;
+        while ((pid = findProcessId(command)) != -1) {
+            if (!signal(pid, signal, Math.max(0, deadline - System.currentTimeMillis())))
+                return false;
+        }
+        return true;
+    }
+
+    private static int parsePid(String name) {
+        int pid = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+
+    private static boolean matches(int pid, String command) {
+        String cmdline = readCommand(pid);
+        return cmdline != null && cmdline.startsWith(command);
+    }
+
+    /**
+     * @return first argument of the process command line, null if it can't be read.
+     */
+    private static String readCommand(int pid) {
+        String cmdline = read(PROC + "/" + pid + "/cmdline");
+        if (cmdline == null || cmdline.length() == 0)
+            return null; // Kernel thread or zombie
+        int end = cmdline.indexOf('\0');
+        return end < 0 ? cmdline : cmdline.substring(0, end);
+    }
+
+    private static String read(String path) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            byte[] buf = new byte[512];
+            int length = in.read(buf);
+            return length < 0 ? "" : new String(buf, 0, length);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -8,36 +8,15 @@ import android.content.SharedPreferences;
 import org.torproject.android.service.OrbotConstants;
 import org.torproject.android.service.TorServiceConstants;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-
-import static java.lang.Runtime.getRuntime;
 
 public class TorServiceUtils implements TorServiceConstants {
 
-    public static int findProcessId(String command) throws IOException {
-        Process procPs = getRuntime().exec(SHELL_CMD_PS);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(procPs.getInputStream()));
+    private static final long KILL_TIMEOUT = 5000;
 
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (!line.contains("PID") && line.contains(command)) {
-                String[] lineParts = line.split("\\s+");
-                try {
-                    return Integer.parseInt(lineParts[1]); //for most devices it is the second
-                } catch (NumberFormatException e) {
-                    return Integer.parseInt(lineParts[0]); //but for samsungs it is the first
-                } finally {
-                    try {
-                        procPs.destroy();
-                    } catch (Exception e) {
-                    }
-                }
-            }
-        }
-        return -1;
+    public static int findProcessId(String command) throws IOException {
+        return ProcessTable.findProcessId(command);
     }
 
     public static SharedPreferences getSharedPrefs(Context context) {
@@ -50,38 +29,8 @@ public class TorServiceUtils implements TorServiceConstants {
     }
 
     public static void killProcess(File fileProcBin, String signal) throws Exception {
-        int procId = -1;
-        int killAttempts = 0;
-
-        while ((procId = TorServiceUtils.findProcessId(fileProcBin.getCanonicalPath())) != -1) {
-            killAttempts++;
-            String pidString = String.valueOf(procId);
-            try {
-                getRuntime().exec("busybox killall " + signal + " " + fileProcBin.getName
-                        ());
-            } catch (IOException ioe) {
-            }
-            try {
-                getRuntime().exec("toolbox kill " + signal + " " + pidString);
-            } catch (IOException ioe) {
-            }
-            try {
-                getRuntime().exec("busybox kill " + signal + " " + pidString);
-            } catch (IOException ioe) {
-            }
-            try {
-                getRuntime().exec("kill " + signal + " " + pidString);
-            } catch (IOException ioe) {
-            }
-
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                // ignored
-            }
-
-            if (killAttempts > 4)
-                throw new Exception("Cannot kill: " + fileProcBin.getAbsolutePath());
-        }
+        int sig = Integer.parseInt(signal.startsWith("-") ? signal.substring(1) : signal);
+        if (!ProcessTable.killProcess(fileProcBin.getCanonicalPath(), sig, KILL_TIMEOUT))
+            throw new Exception("Cannot kill: " + fileProcBin.getAbsolutePath());
     }
 }
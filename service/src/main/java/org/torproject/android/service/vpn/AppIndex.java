@@ -0,0 +1,352 @@
+package org.torproject.android.service.vpn;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the installed applications using the network, kept on disk.
+ * <p>
+ * Entries are keyed by package and version code. Labels and permissions are only loaded for
+ * packages the index doesn't know in their installed version, in parallel. While the process runs,
+ * package broadcasts keep the index up to date one package at a time.
+ */
+public final class AppIndex {
+    private static final String TAG = "AppIndex";
+
+    private static final String INDEX_FILE = "app_index";
+    private static final int INDEX_VERSION = 1;
+
+    private static AppIndex sInstance;
+
+    private final Context mContext;
+    private final File mFile;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private final ExecutorService mUpdater = Executors.newSingleThreadExecutor();
+    private boolean mLoaded = false;
+
+    private AppIndex(Context context) {
+        mContext = context;
+        mFile = new File(context.getFilesDir(), INDEX_FILE);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null)
+                    return;
+                boolean removed = Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction());
+                if (removed && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))
+                    return; // Followed by ACTION_PACKAGE_ADDED
+                onPackageChanged(data.getSchemeSpecificPart(), removed);
+            }
+        }, filter);
+    }
+
+    public static synchronized AppIndex get(Context context) {
+        if (sInstance == null)
+            sInstance = new AppIndex(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * @return applications using the network, sorted by name, torified as set in the given list
+     * of user names.
+     */
+    public List<TorifiedApp> getApps(String[] torifiedUsers) {
+        ArrayList<TorifiedApp> apps = new ArrayList<>();
+        for (Entry entry : entries()) {
+            if (!entry.usesInternet)
+                continue;
+            TorifiedApp app = entry.toApp();
+            app.setTorified(contains(torifiedUsers, entry.username));
+            apps.add(app);
+        }
+        Collections.sort(apps);
+        return apps;
+    }
+
+    /**
+     * @return packages of the applications using the network that run as one of the given users.
+     */
+    public List<String> getTorifiedPackages(String[] torifiedUsers) {
+        ArrayList<String> packages = new ArrayList<>();
+        for (Entry entry : entries()) {
+            if (entry.usesInternet && contains(torifiedUsers, entry.username))
+                packages.add(entry.packageName);
+        }
+        return packages;
+    }
+
+    private static boolean contains(String[] users, String user) {
+        if (user == null)
+            return false;
+        for (String u : users) {
+            if (u.equals(user))
+                return true;
+        }
+        return false;
+    }
+
+    private synchronized List<Entry> entries() {
+        if (!mLoaded) {
+            load();
+            refresh();
+            mLoaded = true;
+        }
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * Brings the index in line with the installed packages, loading the new and updated ones.
+     */
+    private void refresh() {
+        PackageManager pm = mContext.getPackageManager();
+        List<PackageInfo> installed = pm.getInstalledPackages(0);
+        HashMap<String, Entry> current = new HashMap<>();
+        final List<Entry> stale = new ArrayList<>();
+        for (PackageInfo info : installed) {
+            Entry entry = mEntries.get(info.packageName);
+            if (entry == null || entry.versionCode != info.versionCode) {
+                entry = new Entry(info.packageName, info.versionCode);
+                stale.add(entry);
+            }
+            // Enabled state and uid may change without a new version
+            entry.setApplicationInfo(pm, info.applicationInfo);
+            current.put(entry.packageName, entry);
+        }
+
+        if (!stale.isEmpty()) {
+            int threads = Math.min(stale.size(), Runtime.getRuntime().availableProcessors());
+            ExecutorService loader = Executors.newFixedThreadPool(threads);
+            for (final Entry entry : stale) {
+                loader.execute(new Runnable() {
+                    public void run() {
+                        entry.loadDetails(mContext.getPackageManager());
+                    }
+                });
+            }
+            loader.shutdown();
+            try {
+                loader.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        boolean changed = !stale.isEmpty() || current.size() != mEntries.size();
+        mEntries.clear();
+        mEntries.putAll(current);
+        if (changed)
+            saveAsync();
+    }
+
+    private void onPackageChanged(final String packageName, final boolean removed) {
+        mUpdater.execute(new Runnable() {
+            public void run() {
+                Entry entry = null;
+                if (!removed) {
+                    PackageManager pm = mContext.getPackageManager();
+                    try {
+                        PackageInfo info = pm.getPackageInfo(packageName, 0);
+                        entry = new Entry(packageName, info.versionCode);
+                        entry.setApplicationInfo(pm, info.applicationInfo);
+                        entry.loadDetails(pm);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        // Removed meanwhile
+                    }
+                }
+                synchronized (AppIndex.this) {
+                    if (!mLoaded)
+                        return; // Picked up by the first refresh
+                    if (entry == null)
+                        mEntries.remove(packageName);
+                    else
+                        mEntries.put(packageName, entry);
+                }
+                save();
+            }
+        });
+    }
+
+    private void saveAsync() {
+        mUpdater.execute(new Runnable() {
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private void load() {
+        if (!mFile.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != INDEX_VERSION)
+                return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = Entry.read(in);
+                mEntries.put(entry.packageName, entry);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read app index", e);
+            mEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.values());
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries)
+                entry.write(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile))
+                Log.w(TAG, "unable to replace app index");
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write app index", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        final String packageName;
+        final int versionCode;
+        int uid;
+        String username;
+        String procname;
+        boolean enabled;
+        boolean system;
+        // Loaded once per version
+        String name;
+        boolean requestsInternet;
+        boolean usesInternet;
+
+        Entry(String packageName, int versionCode) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+        }
+
+        void setApplicationInfo(PackageManager pm, ApplicationInfo appInfo) {
+            if (appInfo == null)
+                return;
+            if (uid != appInfo.uid || username == null) {
+                uid = appInfo.uid;
+                username = pm.getNameForUid(uid);
+            }
+            procname = appInfo.processName;
+            enabled = appInfo.enabled;
+            //System app
+            system = (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+            usesInternet = requestsInternet || system;
+        }
+
+        void loadDetails(PackageManager pm) {
+            name = packageName;
+            try {
+                PackageInfo pInfo = pm.getPackageInfo(packageName, PackageManager
+                        .GET_PERMISSIONS);
+                if (pInfo.requestedPermissions != null) {
+                    for (String permInfo : pInfo.requestedPermissions) {
+                        if (permInfo.equals("android.permission.INTERNET")) {
+                            requestsInternet = true;
+                        }
+                    }
+                }
+                if (pInfo.applicationInfo != null)
+                    name = pm.getApplicationLabel(pInfo.applicationInfo).toString();
+            } catch (Exception e) {
+                Log.w(TAG, "unable to load " + packageName, e);
+            }
+            usesInternet = requestsInternet || system;
+        }
+
+        TorifiedApp toApp() {
+            TorifiedApp app = new TorifiedApp();
+            app.setUsesInternet(usesInternet);
+            app.setEnabled(enabled);
+            app.setUid(uid);
+            app.setUsername(username);
+            app.setProcname(procname);
+            app.setPackageName(packageName);
+            app.setName(name);
+            return app;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(packageName);
+            out.writeInt(versionCode);
+            out.writeInt(uid);
+            out.writeUTF(username != null ? username : "");
+            out.writeUTF(procname != null ? procname : "");
+            out.writeBoolean(enabled);
+            out.writeBoolean(system);
+            out.writeUTF(name != null ? name : packageName);
+            out.writeBoolean(requestsInternet);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            Entry entry = new Entry(in.readUTF(), in.readInt());
+            entry.uid = in.readInt();
+            entry.username = in.readUTF();
+            entry.procname = in.readUTF();
+            entry.enabled = in.readBoolean();
+            entry.system = in.readBoolean();
+            entry.name = in.readUTF();
+            entry.requestsInternet = in.readBoolean();
+            entry.usesInternet = entry.requestsInternet || entry.system;
+            return entry;
+        }
+    }
+}
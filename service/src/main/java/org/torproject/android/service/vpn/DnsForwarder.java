@@ -0,0 +1,536 @@
+package org.torproject.android.service.vpn;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Caching DNS forwarder used by the VPN in place of the pdnsd daemon.
+ * <p>
+ * Queries received on the local port are answered from the cache while their records are fresh,
+ * otherwise they are forwarded over UDP to Tor's DNSPort. Identical queries in flight are sent
+ * upstream once and all clients get the same answer. Answers served from the cache carry the
+ * remaining TTL. The cache is written to disk when the forwarder stops and read back when it
+ * starts, so a VPN restart begins with a warm cache.
+ */
+public class DnsForwarder {
+    private static final String TAG = "DnsForwarder";
+
+    private static final int MAX_PACKET = 4096;
+    private static final int MAX_ENTRIES = 1024;
+    // Same bounds as the pdnsd configuration
+    private static final long MIN_TTL = 15 * 60 * 1000L;
+    private static final long MAX_TTL = 7 * 24 * 60 * 60 * 1000L;
+    private static final long NEGATIVE_TTL = 60 * 1000L;
+    private static final long TIMEOUT = 10 * 1000L;
+    private static final int CACHE_VERSION = 1;
+    private static final int LOCALHOST_TTL = 86400;
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_OPT = 41;
+    private static final int CLASS_IN = 1;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private final File mCacheFile;
+
+    private final LinkedHashMap<String, CacheEntry> mCache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final HashMap<String, Pending> mPending = new HashMap<>();
+    private final HashMap<Integer, Pending> mPendingById = new HashMap<>();
+    private int mNextId = new Random().nextInt(0x10000);
+
+    private DatagramSocket mSocket;
+    private DatagramSocket mUpstream;
+    private InetSocketAddress mUpstreamAddress;
+    private int mPort = -1;
+    private boolean mCacheLoaded = false;
+
+    public DnsForwarder(File cacheFile) {
+        mCacheFile = cacheFile;
+    }
+
+    /**
+     * Starts answering queries on the given local port, forwarding them to the given DNS server.
+     * Does nothing if the forwarder is already running with the same configuration.
+     */
+    public synchronized void start(int port, String upstreamHost, int upstreamPort) throws
+            IOException {
+        InetSocketAddress upstream = new InetSocketAddress(upstreamHost, upstreamPort);
+        if (isRunning() && port == mPort && upstream.equals(mUpstreamAddress))
+            return;
+        stop();
+
+        if (!mCacheLoaded) {
+            loadCache();
+            mCacheLoaded = true;
+        }
+
+        DatagramSocket socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(port));
+        try {
+            mUpstream = new DatagramSocket();
+            mUpstream.connect(upstream);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        mSocket = socket;
+        mPort = port;
+        mUpstreamAddress = upstream;
+
+        final DatagramSocket server = mSocket;
+        final DatagramSocket client = mUpstream;
+        startThread("DnsForwarder", new Runnable() {
+            public void run() {
+                serve(server, client);
+            }
+        });
+        startThread("DnsForwarder-upstream", new Runnable() {
+            public void run() {
+                receive(client, server);
+            }
+        });
+        Log.d(TAG, "forwarding DNS from port " + port + " to " + upstream);
+    }
+
+    /**
+     * Stops the forwarder and writes the cache to disk.
+     */
+    public synchronized void stop() {
+        if (!isRunning())
+            return;
+        mSocket.close();
+        mUpstream.close();
+        mSocket = null;
+        mUpstream = null;
+        mPort = -1;
+        mUpstreamAddress = null;
+        synchronized (mPending) {
+            mPending.clear();
+            mPendingById.clear();
+        }
+        saveCache();
+    }
+
+    public synchronized boolean isRunning() {
+        return mSocket != null;
+    }
+
+    private static void startThread(String name, Runnable runnable) {
+        Thread t = new Thread(runnable, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void serve(DatagramSocket server, DatagramSocket upstream) {
+        byte[] buf = new byte[MAX_PACKET];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!server.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                server.receive(packet);
+                handleQuery(server, upstream, packet);
+            } catch (IOException e) {
+                if (!server.isClosed())
+                    Log.w(TAG, "error answering query", e);
+            }
+        }
+    }
+
+    private void handleQuery(DatagramSocket server, DatagramSocket upstream, DatagramPacket
+            packet) throws IOException {
+        byte[] query = packet.getData();
+        int length = packet.getLength();
+        String key = questionKey(query, length);
+        if (key == null)
+            return;
+        SocketAddress from = packet.getSocketAddress();
+
+        if (key.startsWith("localhost/")) {
+            byte[] answer = localhostAnswer(query, length);
+            if (answer != null)
+                server.send(new DatagramPacket(answer, answer.length, from));
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        synchronized (mCache) {
+            entry = mCache.get(key);
+            if (entry != null && entry.expires <= now) {
+                mCache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            byte[] answer = entry.answer(u16(query, 0), now);
+            server.send(new DatagramPacket(answer, answer.length, from));
+            return;
+        }
+
+        int upstreamId;
+        synchronized (mPending) {
+            Pending pending = mPending.get(key);
+            if (pending != null && now - pending.sent < TIMEOUT) {
+                // Same question on its way, answer with it.
+                pending.addClient(from, u16(query, 0));
+                return;
+            }
+            if (pending != null)
+                mPendingById.remove(pending.upstreamId);
+            else
+                pending = new Pending(key);
+            expirePending(now);
+
+            do {
+                mNextId = (mNextId + 1) & 0xFFFF;
+            } while (mPendingById.containsKey(mNextId));
+            upstreamId = mNextId;
+            pending.upstreamId = upstreamId;
+            pending.sent = now;
+            pending.addClient(from, u16(query, 0));
+            mPending.put(key, pending);
+            mPendingById.put(upstreamId, pending);
+        }
+
+        byte[] forward = new byte[length];
+        System.arraycopy(query, 0, forward, 0, length);
+        setU16(forward, 0, upstreamId);
+        upstream.send(new DatagramPacket(forward, length));
+    }
+
+    private void expirePending(long now) {
+        Iterator<Pending> it = mPendingById.values().iterator();
+        while (it.hasNext()) {
+            Pending pending = it.next();
+            if (now - pending.sent >= TIMEOUT) {
+                it.remove();
+                mPending.remove(pending.key);
+            }
+        }
+    }
+
+    private void receive(DatagramSocket upstream, DatagramSocket server) {
+        byte[] buf = new byte[MAX_PACKET];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!upstream.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                upstream.receive(packet);
+                handleResponse(server, buf, packet.getLength());
+            } catch (IOException e) {
+                if (!upstream.isClosed())
+                    Log.w(TAG, "error forwarding response", e);
+            }
+        }
+    }
+
+    private void handleResponse(DatagramSocket server, byte[] response, int length) throws
+            IOException {
+        if (length < 12)
+            return;
+        Pending pending;
+        synchronized (mPending) {
+            pending = mPendingById.get(u16(response, 0));
+            if (pending == null || !pending.key.equals(questionKey(response, length)))
+                return;
+            mPendingById.remove(pending.upstreamId);
+            mPending.remove(pending.key);
+        }
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry = CacheEntry.parse(response, length, now);
+        if (entry != null) {
+            synchronized (mCache) {
+                mCache.put(pending.key, entry);
+            }
+        }
+
+        byte[] answer = new byte[length];
+        System.arraycopy(response, 0, answer, 0, length);
+        for (int i = 0; i < pending.clients.size(); i++) {
+            setU16(answer, 0, pending.ids.get(i));
+            server.send(new DatagramPacket(answer, length, pending.clients.get(i)));
+        }
+    }
+
+    private void loadCache() {
+        if (!mCacheFile.exists())
+            return;
+        long now = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mCacheFile)));
+            if (in.readInt() != CACHE_VERSION)
+                return;
+            int count = in.readInt();
+            synchronized (mCache) {
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    long expires = in.readLong();
+                    byte[] response = new byte[in.readInt()];
+                    in.readFully(response);
+                    if (expires <= now)
+                        continue;
+                    CacheEntry entry = CacheEntry.parse(response, response.length, now);
+                    if (entry != null) {
+                        entry.expires = expires;
+                        mCache.put(key, entry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read DNS cache", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void saveCache() {
+        long now = System.currentTimeMillis();
+        ArrayList<Map.Entry<String, CacheEntry>> entries = new ArrayList<>();
+        synchronized (mCache) {
+            for (Map.Entry<String, CacheEntry> e : mCache.entrySet()) {
+                if (e.getValue().expires > now)
+                    entries.add(e);
+            }
+        }
+
+        File tmp = new File(mCacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(CACHE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, CacheEntry> e : entries) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().expires);
+                out.writeInt(e.getValue().response.length);
+                out.write(e.getValue().response);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mCacheFile))
+                Log.w(TAG, "unable to replace DNS cache");
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write DNS cache", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return name, type and class of the single question of the message, null if the message
+     * is not a standard query or its answer.
+     */
+    static String questionKey(byte[] msg, int length) {
+        if (length < 12)
+            return null;
+        int opcode = (msg[2] >> 3) & 0xF;
+        if (opcode != 0 || u16(msg, 4) != 1)
+            return null;
+
+        StringBuilder name = new StringBuilder();
+        int off = 12;
+        while (off < length) {
+            int len = msg[off] & 0xFF;
+            off++;
+            if (len == 0)
+                break;
+            if (len > 63 || off + len > length)
+                return null;
+            if (name.length() > 0)
+                name.append('.');
+            for (int i = 0; i < len; i++)
+                name.append((char) (msg[off + i] & 0xFF));
+            off += len;
+        }
+        if (off + 4 > length)
+            return null;
+        return name.toString().toLowerCase(Locale.US) + '/' + u16(msg, off) + '/' + u16(msg,
+                off + 2);
+    }
+
+    /**
+     * Answers localhost with the loopback address, as the pdnsd configuration did.
+     */
+    private static byte[] localhostAnswer(byte[] query, int length) {
+        int questionEnd = skipName(query, 12, length) + 4;
+        if (questionEnd < 16 || questionEnd > length)
+            return null;
+        boolean a = u16(query, questionEnd - 4) == TYPE_A && u16(query, questionEnd - 2) ==
+                CLASS_IN;
+        byte[] answer = new byte[questionEnd + (a ? 16 : 0)];
+        System.arraycopy(query, 0, answer, 0, questionEnd);
+        answer[2] = (byte) (0x80 | (query[2] & 0x01)); // Response, recursion desired as asked
+        answer[3] = (byte) 0x80; // Recursion available
+        setU16(answer, 6, a ? 1 : 0);
+        setU16(answer, 8, 0);
+        setU16(answer, 10, 0);
+        if (a) {
+            int off = questionEnd;
+            setU16(answer, off, 0xC00C); // Name of the question
+            setU16(answer, off + 2, TYPE_A);
+            setU16(answer, off + 4, CLASS_IN);
+            setU16(answer, off + 6, LOCALHOST_TTL >> 16);
+            setU16(answer, off + 8, LOCALHOST_TTL);
+            setU16(answer, off + 10, 4);
+            answer[off + 12] = 127;
+            answer[off + 15] = 1;
+        }
+        return answer;
+    }
+
+    /**
+     * @return offset following the name, -1 if the name does not fit the message.
+     */
+    private static int skipName(byte[] msg, int off, int length) {
+        while (off < length) {
+            int len = msg[off] & 0xFF;
+            if ((len & 0xC0) == 0xC0)
+                return off + 2 <= length ? off + 2 : -1;
+            off += len + 1;
+            if (len == 0)
+                return off;
+        }
+        return -1;
+    }
+
+    private static int u16(byte[] msg, int off) {
+        return ((msg[off] & 0xFF) << 8) | (msg[off + 1] & 0xFF);
+    }
+
+    private static void setU16(byte[] msg, int off, int value) {
+        msg[off] = (byte) (value >> 8);
+        msg[off + 1] = (byte) value;
+    }
+
+    /**
+     * Cached response, with the offsets of its TTL fields.
+     */
+    private static final class CacheEntry {
+        final byte[] response;
+        final int[] ttlOffsets;
+        long expires;
+
+        private CacheEntry(byte[] response, int[] ttlOffsets, long expires) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.expires = expires;
+        }
+
+        /**
+         * @return entry for the response, null if it should not be cached.
+         */
+        static CacheEntry parse(byte[] msg, int length, long now) {
+            if (length < 12 || (msg[2] & 0x80) == 0 || (msg[2] & 0x02) != 0)
+                return null; // Not a response, or truncated
+            int rcode = msg[3] & 0xF;
+            int answers = u16(msg, 6);
+            int records = answers + u16(msg, 8) + u16(msg, 10);
+
+            int off = skipName(msg, 12, length) + 4;
+            if (off < 16 || off > length)
+                return null;
+            int[] ttlOffsets = new int[records];
+            int ttlCount = 0;
+            long minTtl = Long.MAX_VALUE;
+            for (int i = 0; i < records; i++) {
+                off = skipName(msg, off, length);
+                if (off < 0 || off + 10 > length)
+                    return null;
+                if (u16(msg, off) != TYPE_OPT) {
+                    ttlOffsets[ttlCount++] = off + 4;
+                    long ttl = (((long) u16(msg, off + 4)) << 16) | u16(msg, off + 6);
+                    minTtl = Math.min(minTtl, ttl * 1000);
+                }
+                off += 10 + u16(msg, off + 8);
+                if (off > length)
+                    return null;
+            }
+
+            long lifetime;
+            if (rcode == 0 && answers > 0)
+                lifetime = Math.max(MIN_TTL, Math.min(MAX_TTL, minTtl));
+            else if (rcode == RCODE_NXDOMAIN || rcode == 0)
+                lifetime = NEGATIVE_TTL;
+            else
+                return null;
+
+            byte[] response = new byte[length];
+            System.arraycopy(msg, 0, response, 0, length);
+            int[] offsets = new int[ttlCount];
+            System.arraycopy(ttlOffsets, 0, offsets, 0, ttlCount);
+            return new CacheEntry(response, offsets, now + lifetime);
+        }
+
+        /**
+         * @return copy of the response for the query id, with the TTLs left.
+         */
+        byte[] answer(int id, long now) {
+            byte[] answer = response.clone();
+            setU16(answer, 0, id);
+            long ttl = Math.max(0, (expires - now + 999) / 1000);
+            for (int off : ttlOffsets) {
+                setU16(answer, off, (int) (ttl >> 16));
+                setU16(answer, off + 2, (int) ttl);
+            }
+            return answer;
+        }
+    }
+
+    /**
+     * Query forwarded upstream, with the clients waiting for it.
+     */
+    private static final class Pending {
+        final String key;
+        final List<SocketAddress> clients = new ArrayList<>();
+        final List<Integer> ids = new ArrayList<>();
+        int upstreamId;
+        long sent;
+
+        Pending(String key) {
+            this.key = key;
+        }
+
+        void addClient(SocketAddress client, int id) {
+            clients.add(client);
+            ids.add(id);
+        }
+    }
+}
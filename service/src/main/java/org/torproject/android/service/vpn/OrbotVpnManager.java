@@ -28,12 +28,13 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.util.Log;
 import android.widget.Toast;
 import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
 import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
-import org.torproject.android.service.R;
 import org.torproject.android.service.TorServiceConstants;
+import org.torproject.android.service.util.ProcessTable;
 import org.torproject.android.service.util.TorServiceUtils;
 
 import java.io.*;
@@ -49,9 +50,11 @@ public class OrbotVpnManager implements Handler.Callback {
     //this is the actual DNS server we talk to over UDP or TCP (now using Tor's DNS port)
     private final static String DEFAULT_ACTUAL_DNS_HOST = "127.0.0.1";
     private final static int DEFAULT_ACTUAL_DNS_PORT = TorServiceConstants.TOR_DNS_PORT_DEFAULT;
+    //local DNS endpoint tun2socks sends the VPN's queries to
+    private final static int LOCAL_DNS_PORT = 8091;
     public static int sSocksProxyServerPort = -1;
     public static String sSocksProxyLocalhost = null;
-    File filePdnsd;
+    private final DnsForwarder mDnsForwarder;
     private Thread mThreadVPN;
     private String mSessionName = "OrbotVPN";
     private ParcelFileDescriptor mInterface;
@@ -64,45 +67,18 @@ public class OrbotVpnManager implements Handler.Callback {
         mService = service;
         File fileBinHome = mService.getDir(TorServiceConstants.DIRECTORY_TOR_BINARY, Application
                 .MODE_PRIVATE);
-        filePdnsd = new File(fileBinHome, TorServiceConstants.PDNSD_ASSET_KEY);
+        mDnsForwarder = new DnsForwarder(new File(fileBinHome, "dns.cache"));
         Tun2Socks.init();
     }
 
-    public static void makePdnsdConf(Context context, String dns, int port, File fileDir) throws
-            IOException {
-        String conf = String.format(context.getString(R.string.pdnsd_conf), dns, port, fileDir
-                .getCanonicalPath());
-
-        File f = new File(fileDir, "pdnsd.conf");
-
-        if (f.exists()) {
-            f.delete();
-        }
-
-        FileOutputStream fos = new FileOutputStream(f, false);
-        PrintStream ps = new PrintStream(fos);
-        ps.print(conf);
-        ps.close();
-
-        File cache = new File(fileDir, "pdnsd.cache");
-
-        if (!cache.exists()) {
-            try {
-                cache.createNewFile();
-            } catch (Exception e) {
-
-            }
-        }
-    }
-
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private void doLollipopAppRouting(Builder builder) throws NameNotFoundException {
-        List<TorifiedApp> apps = TorifiedApp.getApps(mService, TorServiceUtils
+        List<String> packages = TorifiedApp.getTorifiedPackages(mService, TorServiceUtils
                 .getSharedPrefs(mService.getApplicationContext()));
         boolean perAppEnabled = false;
-        for (TorifiedApp app : apps) {
-            if (app.isTorified() && (!app.getPackageName().equals(mService.getPackageName()))) {
-                builder.addAllowedApplication(app.getPackageName());
+        for (String packageName : packages) {
+            if (!packageName.equals(mService.getPackageName())) {
+                builder.addAllowedApplication(packageName);
                 perAppEnabled = true;
             }
         }
@@ -162,20 +138,15 @@ public class OrbotVpnManager implements Handler.Callback {
     }
 
     private synchronized void setupTun2Socks(final Builder builder) {
-        if (mInterface != null) {//stop tun2socks now to give it time to clean up
+        if (mInterface != null) {//switch tun2socks over once the new interface is up
             isRestart = true;
-            Tun2Socks.Stop();
         }
 
         mThreadVPN = new Thread() {
 
             public void run() {
                 try {
-                    if (isRestart) {
-                        Log.d(TAG, "is a restart... let's wait for a few seconds");
-                        Thread.sleep(3000);
-                    }
-                    //start PDNSD daemon pointing to actual DNS
+                    //start DNS forwarder pointing to actual DNS, kept running if unchanged
                     startDNS(DEFAULT_ACTUAL_DNS_HOST, DEFAULT_ACTUAL_DNS_PORT);
 
                     final String vpnName = "OrbotVPN";
@@ -187,7 +158,7 @@ public class OrbotVpnManager implements Handler.Callback {
                     // library, but we must put in a valid DNS to start
                     final String defaultRoute = "0.0.0.0";
                     final String localSocks = localhost + ':' + mTorSocks;
-                    final String localDNS = virtualGateway + ':' + "8091";
+                    final String localDNS = virtualGateway + ':' + LOCAL_DNS_PORT;
                     final boolean localDnsTransparentProxy = true;
 
                     builder.setMtu(VPN_MTU).addAddress(virtualGateway, 32).setSession(vpnName)
@@ -198,20 +169,30 @@ public class OrbotVpnManager implements Handler.Callback {
                         doLollipopAppRouting(builder);
 
                     // Create a new interface using the builder and save the parameters.
+                    // Traffic moves to it while the old one is still served.
                     ParcelFileDescriptor newInterface = builder.setSession(mSessionName).establish();
+                    if (newInterface == null) {
+                        Log.d(TAG, "VPN interface could not be established");
+                        isRestart = false;
+                        return;
+                    }
 
-                    if (mInterface != null) {
-                        Log.d(TAG, "Stopping existing VPN interface");
-                        mInterface.close();
-                        mInterface = null;
+                    ParcelFileDescriptor oldInterface;
+                    synchronized (OrbotVpnManager.this) {
+                        oldInterface = mInterface;
+                        mInterface = newInterface;
                     }
 
-                    mInterface = newInterface;
+                    if (oldInterface != null) {
+                        Log.d(TAG, "Switching tun2socks to the new VPN interface");
+                        Tun2Socks.Stop();
+                        oldInterface.close();
+                    }
+                    isRestart = false;
 
-                    Tun2Socks.Start(mInterface, VPN_MTU, virtualIP, virtualNetMask, localSocks,
+                    // Starts as soon as the previous instance has exited
+                    Tun2Socks.Start(newInterface, VPN_MTU, virtualIP, virtualNetMask, localSocks,
                             localDNS, localDnsTransparentProxy);
-
-                    isRestart = false;
                 } catch (Exception e) {
                     Log.d(TAG, "tun2Socks has stopped", e);
                 }
@@ -222,28 +203,13 @@ public class OrbotVpnManager implements Handler.Callback {
     }
 
     private void startDNS(String dns, int port) throws IOException {
-
-        makePdnsdConf(mService, dns, port, filePdnsd.getParentFile());
-
-        String[] cmdString = {filePdnsd.getCanonicalPath(), "-c", filePdnsd.getParent() + "/pdnsd" +
-                ".conf"};
-        ProcessBuilder pb = new ProcessBuilder(cmdString);
-        pb.redirectErrorStream(true);
-        Process proc = pb.start();
-        try {
-            proc.waitFor();
-        } catch (Exception e) {
-        }
-
-        Log.i(TAG, "PDNSD: " + proc.exitValue());
-
-        if (proc.exitValue() != 0) {
-            BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            String line;
-            while ((line = br.readLine()) != null) {
-                Log.d(TAG, "pdnsd: " + line);
-            }
+        if (!mDnsForwarder.isRunning()) {
+            //a pdnsd daemon left by an older version would hold the DNS port
+            File filePdnsd = new File(mService.getDir(TorServiceConstants.DIRECTORY_TOR_BINARY,
+                    Application.MODE_PRIVATE), TorServiceConstants.PDNSD_ASSET_KEY);
+            ProcessTable.killProcess(filePdnsd.getCanonicalPath(), Process.SIGNAL_KILL, 1000);
         }
+        mDnsForwarder.start(LOCAL_DNS_PORT, dns, port);
     }
 
     private void startSocksBypass() {
@@ -302,11 +268,7 @@ public class OrbotVpnManager implements Handler.Callback {
 
         Tun2Socks.Stop();
 
-        try {
-            TorServiceUtils.killProcess(filePdnsd);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        mDnsForwarder.stop();
         mThreadVPN = null;
     }
 }
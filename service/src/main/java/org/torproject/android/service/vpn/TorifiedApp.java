@@ -2,9 +2,6 @@ package org.torproject.android.service.vpn;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import org.torproject.android.service.OrbotConstants;
 
 import java.util.*;
@@ -21,58 +18,18 @@ public final class TorifiedApp implements Comparable {
     private boolean usesInternet;
 
     public static List<TorifiedApp> getApps(Context context, SharedPreferences prefs) {
-        String[] torifiedApps = prefs.getString(OrbotConstants.PREFS_KEY_TORIFIED, "").split("\\|");
-        Arrays.sort(torifiedApps);
-
-        PackageManager pMgr = context.getPackageManager();
-        List<ApplicationInfo> lAppInfo = pMgr.getInstalledApplications(0);
-        Iterator<ApplicationInfo> itAppInfo = lAppInfo.iterator();
-        ArrayList<TorifiedApp> apps = new ArrayList<>();
-
-        while (itAppInfo.hasNext()) {
-            ApplicationInfo appInfo = itAppInfo.next();
-            TorifiedApp app = new TorifiedApp();
-
-            try {
-                PackageInfo pInfo = pMgr.getPackageInfo(appInfo.packageName, PackageManager
-                        .GET_PERMISSIONS);
-                if (pInfo != null && pInfo.requestedPermissions != null) {
-                    for (String permInfo : pInfo.requestedPermissions) {
-                        if (permInfo.equals("android.permission.INTERNET")) {
-                            app.setUsesInternet(true);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
-            if ((appInfo.flags & ApplicationInfo.FLAG_SYSTEM) == 1) {
-                //System app
-                app.setUsesInternet(true);
-            }
-
-            if (!app.usesInternet())
-                continue;
-
-            apps.add(app);
-            app.setEnabled(appInfo.enabled);
-            app.setUid(appInfo.uid);
-            app.setUsername(pMgr.getNameForUid(app.getUid()));
-            app.setProcname(appInfo.processName);
-            app.setPackageName(appInfo.packageName);
-
-            try {
-                app.setName(pMgr.getApplicationLabel(appInfo).toString());
-            } catch (Exception e) {
-                app.setName(appInfo.packageName);
-            }
-            // check if this application is allowed
-            app.setTorified(Arrays.binarySearch(torifiedApps, app.getUsername()) >= 0);
-        }
-
-        Collections.sort(apps);
-        return apps;
+        return AppIndex.get(context).getApps(getTorifiedUsers(prefs));
+    }
+
+    /**
+     * @return packages of the torified applications.
+     */
+    public static List<String> getTorifiedPackages(Context context, SharedPreferences prefs) {
+        return AppIndex.get(context).getTorifiedPackages(getTorifiedUsers(prefs));
+    }
+
+    private static String[] getTorifiedUsers(SharedPreferences prefs) {
+        return prefs.getString(OrbotConstants.PREFS_KEY_TORIFIED, "").split("\\|");
     }
 
     @Override
@@ -45,6 +45,9 @@ public class Tun2Socks {
     private static String mUdpgwServerAddress;
     private static boolean mUdpgwTransparentDNS;
 
+    private static final Object sLock = new Object();
+    private static boolean sRunning = false;
+
     public static interface IProtectSocket
     {
         boolean doVpnProtect(Socket socket);
@@ -75,7 +78,22 @@ public class Tun2Socks {
         mUdpgwServerAddress = udpgwServerAddress;
         mUdpgwTransparentDNS = udpgwTransparentDNS;
 
-        if (mVpnInterfaceFileDescriptor != null)
+        if (mVpnInterfaceFileDescriptor == null)
+            return;
+
+        // Only one instance can run, wait for the one being stopped to exit
+        synchronized (sLock) {
+            while (sRunning) {
+                try {
+                    sLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            sRunning = true;
+        }
+        try {
             runTun2Socks(
                     mVpnInterfaceFileDescriptor.detachFd(),
                     mVpnInterfaceMTU,
@@ -84,6 +102,12 @@ public class Tun2Socks {
                     mSocksServerAddress,
                     mUdpgwServerAddress,
                     mUdpgwTransparentDNS ? 1 : 0);
+        } finally {
+            synchronized (sLock) {
+                sRunning = false;
+                sLock.notifyAll();
+            }
+        }
     }
 
     public static void Stop() {
@@ -0,0 +1,71 @@
+package org.torproject.android.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogBufferTest {
+
+    private static LogBuffer filled(int capacity, int lines) {
+        LogBuffer buffer = new LogBuffer(capacity);
+        for (int i = 0; i < lines; i++)
+            buffer.add("line " + i);
+        return buffer;
+    }
+
+    @Test
+    public void copiesLinesFromSequence() {
+        LogBuffer buffer = filled(8, 3);
+        List<String> out = new ArrayList<>();
+        assertEquals(3, buffer.copyTo(1, out));
+        assertEquals(Arrays.asList("line 1", "line 2"), out);
+        assertEquals(3, buffer.end());
+    }
+
+    @Test
+    public void nothingToCopyAtEnd() {
+        LogBuffer buffer = filled(8, 3);
+        List<String> out = new ArrayList<>();
+        assertEquals(3, buffer.copyTo(3, out));
+        assertEquals(Collections.<String>emptyList(), out);
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        // 5 lines fit in 8 slots, the 9th overwrites the first
+        LogBuffer buffer = filled(5, 8);
+        List<String> out = new ArrayList<>();
+        buffer.copyTo(0, out);
+        assertEquals(8, out.size());
+        assertEquals("line 0", out.get(0));
+
+        buffer.add("line 8");
+        out.clear();
+        buffer.copyTo(0, out);
+        assertEquals(8, out.size());
+        assertEquals("line 1", out.get(0));
+        assertEquals("line 8", out.get(7));
+    }
+
+    @Test
+    public void overwrittenLinesAreCountedAsDropped() {
+        LogBuffer buffer = filled(4, 2);
+        List<String> out = new ArrayList<>();
+        long delivered = buffer.copyTo(0, out);
+        assertEquals(2, delivered);
+
+        // 6 more lines wrap past the 2 not yet delivered
+        for (int i = 2; i < 8; i++)
+            buffer.add("line " + i);
+        out.clear();
+        long next = buffer.copyTo(delivered, out);
+        assertEquals(8, next);
+        assertEquals(Arrays.asList("line 4", "line 5", "line 6", "line 7"), out);
+        assertEquals(2, next - delivered - out.size());
+    }
+}
@@ -0,0 +1,127 @@
+package org.torproject.android.service;
+
+import net.freehaven.tor.control.TorControlConnection;
+
+import org.junit.Test;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TorConfigEngineTest {
+
+    private static List<String> diff(String old, String next) {
+        return TorConfigEngine.diff(TorConfigEngine.parse(old), TorConfigEngine.parse(next));
+    }
+
+    /**
+     * @return commands sent to a control connection accepting all of them
+     */
+    private static String sent(String old, String next) throws IOException {
+        // The parser thread drops replies nobody waits for yet, so each one
+        // is only made readable once its command has been flushed
+        final PipedWriter replies = new PipedWriter();
+        PipedReader in = new PipedReader(replies);
+        StringWriter out = new StringWriter();
+        Writer control = new FilterWriter(out) {
+            @Override
+            public void flush() throws IOException {
+                super.flush();
+                replies.write("250 OK\r\n");
+                replies.flush();
+            }
+        };
+        TorControlConnection connection = new TorControlConnection(in, control);
+        try {
+            TorConfigEngine.setConf(connection, diff(old, next));
+        } finally {
+            replies.close();
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void parseSkipsCommentsAndNormalizesSpaces() {
+        Map<String, List<String>> config = TorConfigEngine.parse(
+                "# comment\n\n  SocksPort   9050 \nSafeSocks\t1\nDNSPort 5400\n");
+        assertEquals(Arrays.asList("SocksPort", "SafeSocks", "DNSPort"),
+                Arrays.asList(config.keySet().toArray()));
+        assertEquals(Collections.singletonList("SocksPort 9050"), config.get("SocksPort"));
+        assertEquals(Collections.singletonList("SafeSocks 1"), config.get("SafeSocks"));
+    }
+
+    @Test
+    public void parseKeepsRepeatedKeysInOrder() {
+        Map<String, List<String>> config = TorConfigEngine.parse(
+                "Bridge obfs4 1.2.3.4:1\nBridge obfs4 5.6.7.8:2\n");
+        assertEquals(Arrays.asList("Bridge obfs4 1.2.3.4:1", "Bridge obfs4 5.6.7.8:2"),
+                config.get("Bridge"));
+    }
+
+    @Test
+    public void unchangedConfigurationHasNoChanges() {
+        String config = "SocksPort 9050\nBridge a\nBridge b\n";
+        assertTrue(diff(config, "# reordered comment\n" + config).isEmpty());
+    }
+
+    @Test
+    public void changedKeySetsAllItsLines() {
+        assertEquals(Arrays.asList("Bridge a", "Bridge c"),
+                diff("SocksPort 9050\nBridge a\nBridge b\n", "SocksPort 9050\nBridge a\nBridge c\n"));
+    }
+
+    @Test
+    public void removedKeyIsReset() {
+        assertEquals(Collections.singletonList("ExitNodes"),
+                diff("SocksPort 9050\nExitNodes {de}\n", "SocksPort 9050\n"));
+    }
+
+    @Test
+    public void hiddenServicesAreSetAsAWhole() {
+        String old = "HiddenServiceDir /a\nHiddenServicePort 80 127.0.0.1:8080\n";
+        String next = old + "HiddenServiceDir /b\nHiddenServicePort 22 127.0.0.1:22\n";
+        assertEquals(Arrays.asList("HiddenServiceDir /a", "HiddenServicePort 80 127.0.0.1:8080",
+                "HiddenServiceDir /b", "HiddenServicePort 22 127.0.0.1:22"), diff(old, next));
+    }
+
+    @Test
+    public void removedHiddenServicesResetTheOptions() {
+        assertEquals(Collections.singletonList("HiddenServiceOptions"),
+                diff("SocksPort 9050\nHiddenServiceDir /a\nHiddenServicePort 80 127.0.0.1:8080\n",
+                        "SocksPort 9050\n"));
+    }
+
+    @Test
+    public void changedLinesAreSet() throws IOException {
+        assertEquals("SETCONF Bridge=\"a\" Bridge=\"c\"\r\n",
+                sent("Bridge a\nBridge b\n", "Bridge a\nBridge c\n"));
+    }
+
+    @Test
+    public void removedKeysAreReset() throws IOException {
+        assertEquals("RESETCONF ExitNodes\r\n",
+                sent("SocksPort 9050\nExitNodes {de}\n", "SocksPort 9050\n"));
+    }
+
+    @Test
+    public void removedHiddenServicesAreResetBeforeOtherChangesAreSet() throws IOException {
+        assertEquals("RESETCONF HiddenServiceOptions\r\nSETCONF SocksPort=\"9051\"\r\n",
+                sent("SocksPort 9050\nHiddenServiceDir /a\nHiddenServicePort 80 127.0.0.1:80\n",
+                        "SocksPort 9051\n"));
+    }
+
+    @Test
+    public void nothingIsSentWithoutChanges() throws IOException {
+        assertEquals("", sent("SocksPort 9050\n", "SocksPort 9050\n"));
+    }
+}